@@ -0,0 +1,34 @@
+package functions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Envelope decoding and validation: JSON parsing, URL and option checks, and base64 body decoding.
+ */
+@State(Scope.Benchmark)
+public class EnvelopeParserBenchmark {
+
+    @Param({"256", "16384", "1048576"})
+    int bodyBytes;
+
+    private byte[] envelope;
+
+    @Setup
+    public void setUp() {
+        envelope = Payloads.envelope("https://example.com/hook", bodyBytes);
+    }
+
+    @Benchmark
+    public Webhook parse() throws IOException, ValidationException {
+        return EnvelopeParser.parse(new InputStreamReader(new ByteArrayInputStream(envelope), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,31 @@
+package functions;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Deterministic envelopes and bodies of a given size for the benchmarks.
+ */
+final class Payloads {
+
+    private Payloads() {
+    }
+
+    static byte[] body(int bytes) {
+
+        byte[] body = new byte[bytes];
+        new Random(42).nextBytes(body);
+        return body;
+    }
+
+    static byte[] envelope(String url, int bodyBytes) {
+
+        String envelope = "{" +
+                "\"url\":\"" + url + "\", " +
+                "\"headers\":{\"Content-Type\": \"application/octet-stream\", \"X-Request-Id\": \"bench\"}, " +
+                "\"body\": \"" + Base64.getEncoder().encodeToString(body(bodyBytes)) + "\", " +
+                "\"options\": {\"timeout\": 30}}";
+        return envelope.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,63 @@
+package functions;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * Streaming an upstream response to the caller, with the upstream served from memory.
+ */
+@State(Scope.Benchmark)
+public class ResponseRelayBenchmark {
+
+    @Param({"256", "16384", "1048576"})
+    int bodyBytes;
+
+    private final StubHttpResponse downstream = new StubHttpResponse();
+    private HttpRequestFactory requestFactory;
+
+    @Setup
+    public void setUp() {
+
+        byte[] body = Payloads.body(bodyBytes);
+        requestFactory = new MockHttpTransport() {
+
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+
+                return new MockLowLevelHttpRequest(url) {
+
+                    @Override
+                    public LowLevelHttpResponse execute() {
+                        return new MockLowLevelHttpResponse()
+                                .setContentType("application/octet-stream")
+                                .setContent(body);
+                    }
+                };
+            }
+        }.createRequestFactory();
+    }
+
+    @Benchmark
+    public long relay() throws IOException {
+
+        downstream.reset();
+        com.google.api.client.http.HttpResponse upstream = requestFactory
+                .buildGetRequest(new GenericUrl("https://example.com/hook"))
+                .setResponseReturnRawInputStream(true)
+                .execute();
+        ResponseRelay.relay(upstream, downstream, 0);
+        return downstream.bytesWritten();
+    }
+}
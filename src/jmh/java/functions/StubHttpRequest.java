@@ -0,0 +1,90 @@
+package functions;
+
+import com.google.cloud.functions.HttpRequest;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Minimal in-memory {@link HttpRequest} so benchmarks measure the proxy rather than a mocking library.
+ */
+final class StubHttpRequest implements HttpRequest {
+
+    private final String method;
+    private final String path;
+    private final byte[] body;
+
+    StubHttpRequest(String method, String path, byte[] body) {
+
+        this.method = method;
+        this.path = path;
+        this.body = body;
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public String getUri() {
+        return "http://localhost" + path;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public Optional<String> getQuery() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Map<String, List<String>> getQueryParameters() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Map<String, HttpPart> getParts() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Optional<String> getContentType() {
+        return Optional.of("application/json");
+    }
+
+    @Override
+    public long getContentLength() {
+        return body.length;
+    }
+
+    @Override
+    public Optional<String> getCharacterEncoding() {
+        return Optional.of("UTF-8");
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(body);
+    }
+
+    @Override
+    public BufferedReader getReader() {
+        return new BufferedReader(new InputStreamReader(getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaders() {
+        return Collections.emptyMap();
+    }
+}
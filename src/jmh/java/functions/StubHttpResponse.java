@@ -0,0 +1,106 @@
+package functions;
+
+import com.google.cloud.functions.HttpResponse;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * {@link HttpResponse} that counts and discards the body, and can be reset between invocations.
+ */
+final class StubHttpResponse implements HttpResponse {
+
+    private final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private int statusCode;
+    private String contentType;
+    private long bytesWritten;
+
+    void reset() {
+
+        headers.clear();
+        statusCode = 0;
+        contentType = null;
+        bytesWritten = 0;
+    }
+
+    int statusCode() {
+        return statusCode;
+    }
+
+    long bytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void setStatusCode(int code) {
+        statusCode = code;
+    }
+
+    @Override
+    public void setStatusCode(int code, String message) {
+        statusCode = code;
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    @Override
+    public Optional<String> getContentType() {
+        return Optional.ofNullable(contentType);
+    }
+
+    @Override
+    public void appendHeader(String header, String value) {
+        headers.computeIfAbsent(header, name -> new ArrayList<>()).add(value);
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+
+        return new OutputStream() {
+
+            @Override
+            public void write(int b) {
+                bytesWritten++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                bytesWritten += len;
+            }
+        };
+    }
+
+    @Override
+    public BufferedWriter getWriter() {
+
+        return new BufferedWriter(new Writer() {
+
+            @Override
+            public void write(char[] buffer, int off, int len) {
+                bytesWritten += len;
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+}
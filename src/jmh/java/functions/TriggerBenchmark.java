@@ -0,0 +1,72 @@
+package functions;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+
+/**
+ * End-to-end {@link Trigger#service} against an in-process upstream that echoes the request body.
+ */
+@State(Scope.Benchmark)
+public class TriggerBenchmark {
+
+    @Param({"256", "16384", "1048576"})
+    int bodyBytes;
+
+    private final Trigger trigger = new Trigger();
+    private final StubHttpResponse response = new StubHttpResponse();
+    private HttpServer upstream;
+    private byte[] envelope;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        // the JDK server writes headers and body separately; without TCP_NODELAY each call waits on delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        upstream = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        upstream.createContext("/", exchange -> {
+            byte[] buffer = new byte[16 * 1024];
+            long length = 0;
+            try (InputStream in = exchange.getRequestBody()) {
+                for (int n; (n = in.read(buffer)) > 0; ) {
+                    length += n;
+                }
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            byte[] body = ("{\"received\":" + length + "}").getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        upstream.setExecutor(Executors.newCachedThreadPool(DispatchExecutor.daemonThreads("bench-upstream")));
+        upstream.start();
+        envelope = Payloads.envelope("http://127.0.0.1:" + upstream.getAddress().getPort() + "/hook", bodyBytes);
+    }
+
+    @TearDown
+    public void tearDown() {
+        upstream.stop(0);
+    }
+
+    @Benchmark
+    public int service() throws IOException {
+
+        response.reset();
+        trigger.service(new StubHttpRequest("POST", "/", envelope), response);
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Upstream call failed with status " + response.statusCode());
+        }
+        return response.statusCode();
+    }
+}
@@ -0,0 +1,42 @@
+package functions;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Building the outbound request from a parsed envelope, on the shared transport.
+ */
+@State(Scope.Benchmark)
+public class WebhookSenderBenchmark {
+
+    @Param({"256", "16384", "1048576"})
+    int bodyBytes;
+
+    private final WebhookSender sender = new WebhookSender();
+    private Webhook webhook;
+
+    @Setup
+    public void setUp() throws IOException, GeneralSecurityException {
+
+        webhook = new Webhook();
+        webhook.setUrl("https://example.com/hook");
+        webhook.setHeaders(new HttpHeaders().setAcceptEncoding(null)
+                .setContentType("application/octet-stream").set("X-Request-Id", "bench"));
+        webhook.setBody(Payloads.body(bodyBytes));
+        webhook.setTimeout(30);
+        TransportRegistry.requestFactory();
+    }
+
+    @Benchmark
+    public HttpRequest buildRequest() throws IOException, GeneralSecurityException {
+        return sender.buildRequest(webhook);
+    }
+}
@@ -0,0 +1,120 @@
+package functions;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Training run for an AppCDS archive. Starts the function as {@code runFunction} does, with
+ * {@code -XX:ArchiveClassesAtExit}, sends it a mix of envelopes that covers the main request paths
+ * (plain, GET, compressed, batch, the JDK transport, TLS, metrics), then shuts it down normally so the
+ * JVM writes every class it loaded to the archive. The archive is only valid for the same JDK and
+ * the same classpath, so it has to be regenerated whenever either changes.
+ *
+ * <p>Settings are {@code cds.*} system properties; see the {@code cdsArchive} task.
+ */
+public final class CdsTraining {
+
+    public static void main(String[] args) throws Exception {
+
+        File archive = new File(requiredSetting("archive"));
+        File directory = archive.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create archive directory " + directory);
+        }
+        if (archive.exists() && !archive.delete()) {
+            throw new IOException("Cannot replace " + archive);
+        }
+
+        List<String> jvmArgs = new ArrayList<>(Arrays.asList(setting("jvmArgs", "").trim().split("\\s+")));
+        jvmArgs.removeIf(String::isEmpty);
+        jvmArgs.add("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath());
+
+        StubUpstream upstream = new StubUpstream(0, 0, 0, 0, 256);
+        upstream.start();
+        FunctionProcess function = null;
+        try {
+            function = FunctionProcess.start(
+                    requiredSetting("invokerClasspath"), requiredSetting("functionClasspath"),
+                    setting("target", "functions.Trigger"), Integer.parseInt(setting("port", "8083")),
+                    jvmArgs, new File(directory, "training.log"), 60_000);
+            train(function.url(), upstream.url(), Integer.parseInt(setting("rounds", "50")));
+        } finally {
+            if (function != null) {
+                function.stop(60_000);
+            }
+            upstream.stop();
+        }
+        if (!archive.isFile()) {
+            throw new IOException("No archive was written, see " + new File(directory, "training.log"));
+        }
+        System.out.println("CDS archive written to " + archive.getAbsolutePath() + " (" + archive.length() + " bytes)");
+    }
+
+    private static void train(String functionUrl, String upstreamUrl, int rounds) throws Exception {
+
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        String small = Base64.getEncoder().encodeToString("{\"event\":\"training\"}".getBytes(StandardCharsets.UTF_8));
+        String large = Base64.getEncoder().encodeToString(new byte[8 * 1024]);
+        String tlsUrl = upstreamUrl.replace("http://", "https://");
+        List<String> envelopes = Arrays.asList(
+                "{\"url\":\"" + upstreamUrl + "\", \"headers\":{\"Content-Type\": \"application/json\"}, "
+                        + "\"body\": \"" + small + "\", \"options\": {\"timeout\": 30}}",
+                "{\"url\":\"" + upstreamUrl + "\", \"body\": \"\", \"options\": {\"method\": \"GET\"}}",
+                "{\"url\":\"" + upstreamUrl + "\", \"body\": \"" + large + "\", \"options\": {\"compress\": true}}",
+                "{\"url\":\"" + upstreamUrl + "\", \"body\": \"" + small + "\", \"options\": {\"transport\": \"jdk\"}}",
+                "{\"url\":\"" + upstreamUrl + "\", \"body\": \"" + small + "\", "
+                        + "\"options\": {\"idempotencyKey\": \"training\", \"coalesce\": true}}",
+                // The stub only speaks plain HTTP, so this fails during the handshake, but only after
+                // the TLS client stack and the trust store have been loaded.
+                "{\"url\":\"" + tlsUrl + "\", \"body\": \"" + small + "\"}",
+                "{\"url\":\"not a url\", \"body\": \"" + small + "\"}");
+        String batch = "[" + envelopes.get(0) + "," + envelopes.get(2) + "]";
+
+        for (int round = 0; round < rounds; round++) {
+            for (String envelope : envelopes) {
+                send(client, post(functionUrl, envelope));
+            }
+            send(client, post(functionUrl + "batch", batch));
+            send(client, HttpRequest.newBuilder(URI.create(functionUrl + "metrics")).GET().build());
+        }
+    }
+
+    private static HttpRequest post(String url, String body) {
+
+        return HttpRequest.newBuilder(URI.create(url))
+                .timeout(Duration.ofSeconds(30))
+                .header("Content-Type", "application/json")
+                .header("Accept-Encoding", "gzip")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    private static void send(HttpClient client, HttpRequest request) throws IOException, InterruptedException {
+        client.send(request, HttpResponse.BodyHandlers.discarding());
+    }
+
+    private static String setting(String name, String defaultValue) {
+
+        String value = System.getProperty("cds." + name);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    private static String requiredSetting(String name) {
+
+        String value = setting(name, null);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing system property cds." + name);
+        }
+        return value;
+    }
+}
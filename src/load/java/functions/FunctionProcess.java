@@ -0,0 +1,103 @@
+package functions;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the function under the Functions Framework invoker in a child JVM, the same way the
+ * {@code runFunction} task does, and waits until it accepts connections.
+ */
+final class FunctionProcess {
+
+    private final Process process;
+    private final int port;
+
+    private FunctionProcess(Process process, int port) {
+
+        this.process = process;
+        this.port = port;
+    }
+
+    static FunctionProcess start(String invokerClasspath, String functionClasspath, String target, int port,
+                                 List<String> jvmArgs, File log, long startupTimeoutMs)
+            throws IOException, InterruptedException {
+
+        FunctionProcess function = launch(invokerClasspath, functionClasspath, target, port, jvmArgs, log);
+        function.awaitReady(startupTimeoutMs, log);
+        return function;
+    }
+
+    /**
+     * Starts the child JVM without waiting for it to listen.
+     */
+    static FunctionProcess launch(String invokerClasspath, String functionClasspath, String target, int port,
+                                  List<String> jvmArgs, File log) throws IOException {
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(invokerClasspath);
+        command.add("com.google.cloud.functions.invoker.runner.Invoker");
+        command.add("--target");
+        command.add(target);
+        command.add("--port");
+        command.add(String.valueOf(port));
+        command.add("--classpath");
+        command.add(functionClasspath);
+
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+        return new FunctionProcess(process, port);
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + port + "/";
+    }
+
+    boolean isAlive() {
+        return process.isAlive();
+    }
+
+    void stop() throws InterruptedException {
+        stop(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    /**
+     * Asks the JVM to shut down normally, so exit-time work such as writing a CDS archive runs, and
+     * kills it if it is still alive after {@code timeoutMs}.
+     */
+    void stop(long timeoutMs) throws InterruptedException {
+
+        process.destroy();
+        if (!process.waitFor(timeoutMs, TimeUnit.MILLISECONDS)) {
+            process.destroyForcibly();
+        }
+    }
+
+    private void awaitReady(long timeoutMs, File log) throws IOException, InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            if (!process.isAlive()) {
+                throw new IOException("Function exited with status " + process.exitValue() + ", see " + log);
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 200);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        process.destroyForcibly();
+        throw new IOException("Function did not start listening on port " + port + " within " + timeoutMs + " ms");
+    }
+}
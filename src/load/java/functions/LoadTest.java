@@ -0,0 +1,320 @@
+package functions;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for the function. It starts a stub upstream and the function in a child
+ * JVM, sends envelopes at a fixed rate regardless of how fast responses come back, and measures each
+ * latency from the request's intended send time so queueing delay is not hidden (no coordinated
+ * omission).
+ *
+ * <p>Results go to {@code load.reportDir}: {@code summary.properties}, the percentile distribution
+ * in {@code latency.hgrm} and per-second interval histograms in {@code latency.hlog}. The process
+ * exits with status 1 when a latency budget, the error-rate budget, or the baseline comparison fails.
+ * All settings are {@code load.*} system properties; see the {@code loadTest} task.
+ */
+public final class LoadTest {
+
+    private final Recorder recorder = new Recorder(TimeUnit.HOURS.toMicros(1), 3);
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failedStatus = new LongAdder();
+    private final LongAdder failedTransport = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile long measureFromNanos = Long.MAX_VALUE;
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new LoadTest().run() ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+
+        File reportDir = new File(setting("reportDir", "build/reports/load"));
+        if (!reportDir.isDirectory() && !reportDir.mkdirs()) {
+            throw new IOException("Cannot create report directory " + reportDir);
+        }
+
+        StubUpstream upstream = new StubUpstream(
+                longSetting("upstreamLatencyMs", 20), longSetting("upstreamJitterMs", 10),
+                doubleSetting("upstreamErrorRate", 0), doubleSetting("upstreamDropRate", 0),
+                (int) longSetting("responseBytes", 256));
+        upstream.start();
+        FunctionProcess function = null;
+        try {
+            function = FunctionProcess.start(
+                    requiredSetting("invokerClasspath"), requiredSetting("functionClasspath"),
+                    setting("target", "functions.Trigger"), (int) longSetting("port", 8081),
+                    splitArgs(setting("functionJvmArgs", "")), new File(reportDir, "function.log"),
+                    longSetting("startupTimeoutMs", 60_000));
+            Histogram histogram = drive(function.url(), envelope(upstream.url()), reportDir);
+            return report(histogram, reportDir);
+        } finally {
+            if (function != null) {
+                function.stop();
+            }
+            upstream.stop();
+        }
+    }
+
+    private Histogram drive(String functionUrl, byte[] envelope, File reportDir) throws IOException {
+
+        double rps = doubleSetting("rps", 200);
+        long warmupNanos = TimeUnit.SECONDS.toNanos(longSetting("warmupSeconds", 5));
+        long durationNanos = TimeUnit.SECONDS.toNanos(longSetting("durationSeconds", 30));
+        int maxOutstanding = (int) longSetting("maxOutstanding", 10_000);
+        Duration timeout = Duration.ofMillis(longSetting("requestTimeoutMs", 10_000));
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(Executors.newCachedThreadPool(daemon("load-client")))
+                .build();
+        HttpRequest request = HttpRequest.newBuilder(URI.create(functionUrl))
+                .timeout(timeout)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(envelope))
+                .build();
+
+        Histogram total = new Histogram(TimeUnit.HOURS.toMicros(1), 3);
+        ScheduledExecutorService intervals = Executors.newSingleThreadScheduledExecutor(daemon("load-intervals"));
+        try (PrintStream hlog = new PrintStream(new FileOutputStream(new File(reportDir, "latency.hlog")),
+                false, StandardCharsets.UTF_8)) {
+            HistogramLogWriter logWriter = new HistogramLogWriter(hlog);
+            long startMillis = System.currentTimeMillis();
+            logWriter.outputStartTime(startMillis);
+            logWriter.setBaseTime(startMillis);
+            logWriter.outputLegend();
+            Histogram[] interval = {null};
+            Runnable collect = () -> {
+                synchronized (total) {
+                    interval[0] = recorder.getIntervalHistogram(interval[0]);
+                    logWriter.outputIntervalHistogram(interval[0]);
+                    total.add(interval[0]);
+                }
+            };
+            intervals.scheduleAtFixedRate(collect, 1, 1, TimeUnit.SECONDS);
+
+            long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rps);
+            long start = System.nanoTime();
+            long end = start + warmupNanos + durationNanos;
+            measureFromNanos = start + warmupNanos;
+            for (long i = 0; ; i++) {
+                long intended = start + i * intervalNanos;
+                if (intended >= end) {
+                    break;
+                }
+                for (long wait; (wait = intended - System.nanoTime()) > 0; ) {
+                    LockSupport.parkNanos(wait);
+                }
+                if (outstanding.incrementAndGet() > maxOutstanding) {
+                    outstanding.decrementAndGet();
+                    if (intended >= measureFromNanos) {
+                        rejected.increment();
+                    }
+                    continue;
+                }
+                client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                        .whenComplete((response, error) -> complete(intended, response, error));
+            }
+            long drainDeadline = System.nanoTime() + timeout.toNanos();
+            while (outstanding.get() > 0 && System.nanoTime() < drainDeadline) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+            intervals.shutdown();
+            try {
+                intervals.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            collect.run();
+            synchronized (total) {
+                total.setStartTimeStamp(startMillis);
+                total.setEndTimeStamp(startMillis + TimeUnit.NANOSECONDS.toMillis(durationNanos + warmupNanos));
+                return total;
+            }
+        }
+    }
+
+    private void complete(long intended, HttpResponse<Void> response, Throwable error) {
+
+        outstanding.decrementAndGet();
+        if (intended < measureFromNanos) {
+            return;
+        }
+        recorder.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended)));
+        if (error != null) {
+            failedTransport.increment();
+        } else if (response.statusCode() >= 200 && response.statusCode() < 300) {
+            succeeded.increment();
+        } else {
+            failedStatus.increment();
+        }
+    }
+
+    private boolean report(Histogram histogram, File reportDir) throws IOException {
+
+        long durationSeconds = longSetting("durationSeconds", 30);
+        long requests = succeeded.sum() + failedStatus.sum() + failedTransport.sum() + rejected.sum();
+        long errors = requests - succeeded.sum();
+        double errorRate = requests == 0 ? 1 : (double) errors / requests;
+
+        Properties summary = new Properties();
+        summary.setProperty("targetRps", String.valueOf(doubleSetting("rps", 200)));
+        summary.setProperty("throughputRps", format(succeeded.sum() / (double) durationSeconds));
+        summary.setProperty("requests", String.valueOf(requests));
+        summary.setProperty("succeeded", String.valueOf(succeeded.sum()));
+        summary.setProperty("failedStatus", String.valueOf(failedStatus.sum()));
+        summary.setProperty("failedTransport", String.valueOf(failedTransport.sum()));
+        summary.setProperty("rejected", String.valueOf(rejected.sum()));
+        summary.setProperty("errorRate", format(errorRate));
+        summary.setProperty("p50Ms", millis(histogram, 50));
+        summary.setProperty("p90Ms", millis(histogram, 90));
+        summary.setProperty("p99Ms", millis(histogram, 99));
+        summary.setProperty("p999Ms", millis(histogram, 99.9));
+        summary.setProperty("maxMs", format(histogram.getMaxValue() / 1000.0));
+
+        try (OutputStream out = new FileOutputStream(new File(reportDir, "summary.properties"))) {
+            summary.store(out, "Load test summary");
+        }
+        try (PrintStream hgrm = new PrintStream(new FileOutputStream(new File(reportDir, "latency.hgrm")),
+                false, StandardCharsets.UTF_8)) {
+            histogram.outputPercentileDistribution(hgrm, 1000.0);
+        }
+        List<String> names = new ArrayList<>(summary.stringPropertyNames());
+        Collections.sort(names);
+        for (String name : names) {
+            System.out.println(name + " = " + summary.getProperty(name));
+        }
+
+        List<String> violations = new ArrayList<>();
+        checkBudget(summary, "p50Ms", doubleSetting("p50BudgetMs", 0), violations);
+        checkBudget(summary, "p99Ms", doubleSetting("p99BudgetMs", 0), violations);
+        checkBudget(summary, "p999Ms", doubleSetting("p999BudgetMs", 0), violations);
+        double maxErrorRate = doubleSetting("maxErrorRate", 0.01);
+        if (errorRate > maxErrorRate) {
+            violations.add("errorRate " + format(errorRate) + " exceeds budget " + format(maxErrorRate));
+        }
+        String baseline = setting("baseline", null);
+        if (baseline != null) {
+            compareToBaseline(summary, new File(baseline), doubleSetting("regressionTolerance", 0.2), violations);
+        }
+        for (String violation : violations) {
+            System.err.println("Latency budget failed: " + violation);
+        }
+        System.out.println("Report written to " + reportDir.getAbsolutePath());
+        return violations.isEmpty();
+    }
+
+    private static void checkBudget(Properties summary, String name, double budgetMs, List<String> violations) {
+
+        double value = Double.parseDouble(summary.getProperty(name));
+        if (budgetMs > 0 && value > budgetMs) {
+            violations.add(name + " " + format(value) + " exceeds budget " + format(budgetMs));
+        }
+    }
+
+    private static void compareToBaseline(Properties summary, File file, double tolerance, List<String> violations)
+            throws IOException {
+
+        Properties baseline = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            baseline.load(in);
+        }
+        for (String name : Arrays.asList("p50Ms", "p99Ms", "p999Ms")) {
+            String previous = baseline.getProperty(name);
+            if (previous == null) {
+                continue;
+            }
+            double limit = Double.parseDouble(previous) * (1 + tolerance);
+            double value = Double.parseDouble(summary.getProperty(name));
+            if (value > limit) {
+                violations.add(name + " " + format(value) + " regressed beyond baseline " + previous
+                        + " (+" + format(tolerance * 100) + "%)");
+            }
+        }
+    }
+
+    private byte[] envelope(String upstreamUrl) {
+
+        byte[] body = new byte[(int) longSetting("payloadBytes", 1024)];
+        Arrays.fill(body, (byte) 'x');
+        return ("{" +
+                "\"url\":\"" + upstreamUrl + "\", " +
+                "\"headers\":{\"Content-Type\": \"application/octet-stream\"}, " +
+                "\"body\": \"" + Base64.getEncoder().encodeToString(body) + "\", " +
+                "\"options\": {\"timeout\": 30}}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String millis(Histogram histogram, double percentile) {
+        return format(histogram.getValueAtPercentile(percentile) / 1000.0);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static List<String> splitArgs(String value) {
+        return value.isBlank() ? Collections.emptyList() : Arrays.asList(value.trim().split("\\s+"));
+    }
+
+    private static java.util.concurrent.ThreadFactory daemon(String name) {
+
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static String setting(String name, String defaultValue) {
+
+        String value = System.getProperty("load." + name);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    private static String requiredSetting(String name) {
+
+        String value = setting(name, null);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing system property load." + name);
+        }
+        return value;
+    }
+
+    private static long longSetting(String name, long defaultValue) {
+        return Long.parseLong(setting(name, String.valueOf(defaultValue)));
+    }
+
+    private static double doubleSetting(String name, double defaultValue) {
+        return Double.parseDouble(setting(name, String.valueOf(defaultValue)));
+    }
+}
@@ -0,0 +1,182 @@
+package functions;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures cold starts: each run launches a fresh function JVM and sends an envelope as soon as the
+ * port accepts connections, retrying until the first response comes back. Reported per run are the
+ * time from process launch to the first response ({@code timeToFirstResponseMs}), the latency of that
+ * first request alone ({@code firstRequestMs}) and of the request after it ({@code secondRequestMs}),
+ * summarized as min, median and max in {@code summary.properties}.
+ *
+ * <p>Pass {@code startup.archive} to run with an AppCDS archive from the {@code cdsArchive} task,
+ * and {@code startup.budgetMs} to exit with status 1 when the median time to first response exceeds
+ * it. Settings are {@code startup.*} system properties; see the {@code startupBenchmark} task.
+ */
+public final class StartupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        System.exit(run() ? 0 : 1);
+    }
+
+    private static boolean run() throws Exception {
+
+        File reportDir = new File(setting("reportDir", "build/reports/startup"));
+        if (!reportDir.isDirectory() && !reportDir.mkdirs()) {
+            throw new IOException("Cannot create report directory " + reportDir);
+        }
+        List<String> jvmArgs = new ArrayList<>(Arrays.asList(setting("jvmArgs", "").trim().split("\\s+")));
+        jvmArgs.removeIf(String::isEmpty);
+        String archive = setting("archive", null);
+        if (archive != null) {
+            if (!new File(archive).isFile()) {
+                throw new IOException("CDS archive " + archive + " does not exist, run the cdsArchive task first");
+            }
+            jvmArgs.add("-XX:SharedArchiveFile=" + archive);
+        }
+
+        int runs = Integer.parseInt(setting("runs", "5"));
+        List<Double> firstResponse = new ArrayList<>();
+        List<Double> firstRequest = new ArrayList<>();
+        List<Double> secondRequest = new ArrayList<>();
+        StubUpstream upstream = new StubUpstream(0, 0, 0, 0, 256);
+        upstream.start();
+        try {
+            HttpClient client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofMillis(200))
+                    .build();
+            String envelope = "{\"url\":\"" + upstream.url() + "\", "
+                    + "\"headers\":{\"Content-Type\": \"application/json\"}, "
+                    + "\"body\": \"" + Base64.getEncoder().encodeToString(
+                            "{\"event\":\"startup\"}".getBytes(StandardCharsets.UTF_8)) + "\"}";
+            for (int run = 0; run < runs; run++) {
+                double[] timings = measure(client, envelope, jvmArgs, new File(reportDir, "function-" + run + ".log"));
+                firstResponse.add(timings[0]);
+                firstRequest.add(timings[1]);
+                secondRequest.add(timings[2]);
+                System.out.println(String.format(Locale.ROOT,
+                        "run %d: timeToFirstResponse %.1f ms, firstRequest %.1f ms, secondRequest %.1f ms",
+                        run + 1, timings[0], timings[1], timings[2]));
+            }
+        } finally {
+            upstream.stop();
+        }
+
+        Properties summary = new Properties();
+        summary.setProperty("runs", String.valueOf(runs));
+        summary.setProperty("cdsArchive", String.valueOf(archive != null));
+        summarize(summary, "timeToFirstResponseMs", firstResponse);
+        summarize(summary, "firstRequestMs", firstRequest);
+        summarize(summary, "secondRequestMs", secondRequest);
+        try (OutputStream out = new FileOutputStream(new File(reportDir, "summary.properties"))) {
+            summary.store(out, "Startup benchmark summary");
+        }
+        List<String> names = new ArrayList<>(summary.stringPropertyNames());
+        Collections.sort(names);
+        for (String name : names) {
+            System.out.println(name + " = " + summary.getProperty(name));
+        }
+
+        double budgetMs = Double.parseDouble(setting("budgetMs", "0"));
+        double median = Double.parseDouble(summary.getProperty("timeToFirstResponseMs.median"));
+        if (budgetMs > 0 && median > budgetMs) {
+            System.err.println("Startup budget failed: median timeToFirstResponseMs " + format(median)
+                    + " exceeds budget " + format(budgetMs));
+            return false;
+        }
+        return true;
+    }
+
+    private static double[] measure(HttpClient client, String envelope, List<String> jvmArgs, File log)
+            throws IOException, InterruptedException {
+
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(setting("timeoutMs", "60000")));
+        int port = Integer.parseInt(setting("port", "8082"));
+        long launched = System.nanoTime();
+        FunctionProcess function = FunctionProcess.launch(
+                requiredSetting("invokerClasspath"), requiredSetting("functionClasspath"),
+                setting("target", "functions.Trigger"), port, jvmArgs, log);
+        try {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(function.url()))
+                    .timeout(Duration.ofSeconds(30))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(envelope))
+                    .build();
+            while (true) {
+                if (!function.isAlive()) {
+                    throw new IOException("Function exited during startup, see " + log);
+                }
+                if (System.nanoTime() - launched > timeoutNanos) {
+                    throw new IOException("Function did not answer within " + setting("timeoutMs", "60000") + " ms");
+                }
+                long sent = System.nanoTime();
+                try {
+                    HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                    long received = System.nanoTime();
+                    if (response.statusCode() != 200) {
+                        throw new IOException("First request answered " + response.statusCode() + ", see " + log);
+                    }
+                    long secondSent = System.nanoTime();
+                    client.send(request, HttpResponse.BodyHandlers.discarding());
+                    return new double[] {millis(received - launched), millis(received - sent),
+                            millis(System.nanoTime() - secondSent)};
+                } catch (ConnectException e) {
+                    Thread.sleep(5);
+                }
+            }
+        } finally {
+            function.stop();
+        }
+    }
+
+    private static void summarize(Properties summary, String name, List<Double> values) {
+
+        List<Double> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        summary.setProperty(name + ".min", format(sorted.get(0)));
+        summary.setProperty(name + ".median", format(sorted.get(sorted.size() / 2)));
+        summary.setProperty(name + ".max", format(sorted.get(sorted.size() - 1)));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String setting(String name, String defaultValue) {
+
+        String value = System.getProperty("startup." + name);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    private static String requiredSetting(String name) {
+
+        String value = setting(name, null);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing system property startup." + name);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,139 @@
+package functions;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background delivery of webhooks, journaled before the caller is answered.
+ */
+class AsyncDelivery {
+
+    private static final Logger LOGGER = Logger.getLogger(AsyncDelivery.class.getName());
+
+    private static volatile AsyncDelivery instance;
+
+    private final Journal journal;
+    private final WebhookSender sender;
+    private final BlockingQueue<Long> queue = new LinkedBlockingQueue<>();
+    private final Semaphore inFlight;
+
+    AsyncDelivery(Journal journal, WebhookSender sender, int maxInFlight) {
+
+        this.journal = journal;
+        this.sender = sender;
+        this.inFlight = new Semaphore(maxInFlight);
+        queue.addAll(journal.pending());
+        if (maxInFlight > 0) {
+            DispatchExecutor.daemonThreads("webhook-async").newThread(this::drain).start();
+        }
+    }
+
+    static AsyncDelivery get() throws IOException {
+
+        AsyncDelivery delivery = instance;
+        if (delivery == null) {
+            synchronized (AsyncDelivery.class) {
+                delivery = instance;
+                if (delivery == null) {
+                    Journal journal = new Journal(directory(),
+                            Journal.segmentBytes(),
+                            ProxyConfig.getBoolean("JOURNAL_FSYNC", false));
+                    delivery = new AsyncDelivery(journal, new WebhookSender(),
+                            ProxyConfig.getInt("ASYNC_MAX_IN_FLIGHT", 64));
+                    instance = delivery;
+                }
+            }
+        }
+        return delivery;
+    }
+
+    /**
+     * Opens the journal in the background when an earlier run left records in it, so they are
+     * delivered after a restart without waiting for the next async request.
+     */
+    static void recover() {
+
+        if (instance != null || !Journal.hasSegments(directory())) {
+            return;
+        }
+        DispatchExecutor.daemonThreads("webhook-async-recovery").newThread(() -> {
+            try {
+                get();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot open the async delivery journal", e);
+            }
+        }).start();
+    }
+
+    private static File directory() {
+        return new File(ProxyConfig.getString("JOURNAL_DIR",
+                new File(System.getProperty("java.io.tmpdir"), "webhook-journal").getPath()));
+    }
+
+    long accept(Webhook webhook) throws IOException {
+
+        long id = journal.append(WebhookCodec.encode(webhook));
+        queue.add(id);
+        return id;
+    }
+
+    int backlog() {
+        return queue.size();
+    }
+
+    private void drain() {
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                inFlight.acquire();
+                deliver(queue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void deliver(long id) {
+
+        Webhook webhook;
+        try {
+            webhook = WebhookCodec.decode(journal.read(id));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot read async delivery " + id, e);
+            complete(id);
+            return;
+        }
+        webhook.setBackground(true);
+        sender.sendAsync(webhook).whenComplete((response, error) -> {
+            try {
+                if (error != null || response == null) {
+                    LOGGER.log(Level.WARNING, "Async delivery " + id + " to " + webhook.getUrl() + " failed", error);
+                } else if (response.exception != null) {
+                    LOGGER.log(Level.WARNING, "Async delivery " + id + " to " + webhook.getUrl() + " failed",
+                            response.exception);
+                } else {
+                    response.urlResponse.disconnect();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Async delivery " + id + " failed", e);
+            } finally {
+                complete(id);
+            }
+        });
+    }
+
+    private void complete(long id) {
+
+        inFlight.release();
+        try {
+            journal.markDone(id);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot mark async delivery " + id + " as done", e);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package functions;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Sends the envelopes of a batch request concurrently and collects one result per envelope.
+ */
+class BatchDispatcher {
+
+    private final WebhookSender sender;
+    private final int maxInFlight;
+
+    BatchDispatcher(WebhookSender sender, int maxInFlight) {
+        this.sender = sender;
+        this.maxInFlight = maxInFlight;
+    }
+
+    List<Result> dispatch(List<EnvelopeParser.Envelope> envelopes) throws InterruptedException {
+
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        List<CompletableFuture<Result>> futures = new ArrayList<>(envelopes.size());
+        for (EnvelopeParser.Envelope envelope : envelopes) {
+            Webhook webhook;
+            try {
+                webhook = envelope.validate();
+            } catch (ValidationException e) {
+                futures.add(CompletableFuture.completedFuture(new Result(500, 0, e.getMessage())));
+                continue;
+            }
+            Result accepted = acceptDeferred(webhook);
+            if (accepted != null) {
+                futures.add(CompletableFuture.completedFuture(accepted));
+                continue;
+            }
+            inFlight.acquire();
+            long start = System.nanoTime();
+            futures.add(sender.sendAsync(webhook)
+                    .thenApply(response -> toResult(response, (System.nanoTime() - start) / 1_000_000))
+                    .whenComplete((result, error) -> inFlight.release()));
+        }
+
+        List<Result> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<Result> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    /**
+     * Hands a scheduled or async item to its journal and returns its 202 result, or returns
+     * {@code null} for an item to send now. Idempotency keys and coalescing need the upstream
+     * response to be kept for the duplicates, which a batch result does not carry, so items asking
+     * for them are refused with a 400.
+     */
+    private static Result acceptDeferred(Webhook webhook) {
+
+        if (webhook.getIdempotencyKey() != null || webhook.isCoalesce()) {
+            return new Result(400, 0, "Idempotency Key And Coalesce Are Not Supported In Batches");
+        }
+        try {
+            if (webhook.getDeliverAt() > System.currentTimeMillis()) {
+                return new Result(202, 0, null, String.valueOf(ScheduledDelivery.get().accept(webhook)));
+            }
+            if (webhook.isAsync()) {
+                return new Result(202, 0, null, String.valueOf(AsyncDelivery.get().accept(webhook)));
+            }
+        } catch (IOException e) {
+            return new Result(500, 0, e.getMessage());
+        }
+        return null;
+    }
+
+    private static Result toResult(UrlResponse response, long latencyMs) {
+
+        if (response.exception != null) {
+            return new Result(response.getStatusCode(), latencyMs, response.exception.getMessage());
+        }
+        try {
+            response.urlResponse.disconnect();
+        } catch (IOException e) {
+            return new Result(response.getStatusCode(), latencyMs, e.getMessage());
+        }
+        return new Result(response.getStatusCode(), latencyMs, null);
+    }
+
+    static void writeResults(List<Result> results, Writer writer) throws IOException {
+
+        JsonWriter jsonWriter = new JsonWriter(writer);
+        jsonWriter.beginArray();
+        for (Result result : results) {
+            jsonWriter.beginObject();
+            jsonWriter.name("status").value(result.status);
+            jsonWriter.name("latencyMs").value(result.latencyMs);
+            if (result.error != null) {
+                jsonWriter.name("error").value(result.error);
+            }
+            if (result.id != null) {
+                jsonWriter.name("id").value(result.id);
+            }
+            jsonWriter.endObject();
+        }
+        jsonWriter.endArray();
+        jsonWriter.flush();
+    }
+
+    static class Result {
+
+        final int status;
+        final long latencyMs;
+        final String error;
+        final String id;
+
+        Result(int status, long latencyMs, String error) {
+            this(status, latencyMs, error, null);
+        }
+
+        Result(int status, long latencyMs, String error, String id) {
+            this.status = status;
+            this.latencyMs = latencyMs;
+            this.error = error;
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package functions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free circuit breaker over a tumbling window of failed and slow calls.
+ */
+final class CircuitBreaker {
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private final int failureRatePercent;
+    private final int slowCallRatePercent;
+    private final long slowCallNanos;
+    private final int minimumCalls;
+    private final long windowNanos;
+    private final long openNanos;
+
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+    private final AtomicLong openedAt = new AtomicLong();
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger slowCalls = new AtomicInteger();
+
+    CircuitBreaker(int failureRatePercent, int slowCallRatePercent, long slowCallMs, int minimumCalls,
+                   long windowMs, long openMs) {
+
+        this.failureRatePercent = failureRatePercent;
+        this.slowCallRatePercent = slowCallRatePercent;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMs);
+        this.minimumCalls = minimumCalls;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+    }
+
+    static CircuitBreaker fromConfig() {
+
+        return new CircuitBreaker(
+                ProxyConfig.getInt("CIRCUIT_FAILURE_RATE_PERCENT", 50),
+                ProxyConfig.getInt("CIRCUIT_SLOW_CALL_RATE_PERCENT", 100),
+                ProxyConfig.getLong("CIRCUIT_SLOW_CALL_MS", 10_000),
+                ProxyConfig.getInt("CIRCUIT_MINIMUM_CALLS", 20),
+                ProxyConfig.getLong("CIRCUIT_WINDOW_MS", 10_000),
+                ProxyConfig.getLong("CIRCUIT_OPEN_MS", 30_000));
+    }
+
+    boolean tryAcquire() {
+
+        int current = state.get();
+        if (current == CLOSED) {
+            return true;
+        }
+        if (current == OPEN && System.nanoTime() - openedAt.get() >= openNanos) {
+            return state.compareAndSet(OPEN, HALF_OPEN);
+        }
+        return false;
+    }
+
+    void record(boolean failure, long durationNanos) {
+
+        long now = System.nanoTime();
+        boolean slow = durationNanos >= slowCallNanos;
+        int current = state.get();
+        if (current == HALF_OPEN) {
+            if (failure || slow) {
+                openedAt.set(now);
+                state.set(OPEN);
+            } else {
+                resetWindow(now);
+                state.set(CLOSED);
+            }
+            return;
+        }
+        if (current == OPEN) {
+            return;
+        }
+
+        long start = windowStart.get();
+        if (now - start >= windowNanos && windowStart.compareAndSet(start, now)) {
+            calls.set(0);
+            failures.set(0);
+            slowCalls.set(0);
+        }
+        int total = calls.incrementAndGet();
+        int failed = failure ? failures.incrementAndGet() : failures.get();
+        int slowed = slow ? slowCalls.incrementAndGet() : slowCalls.get();
+        if (total >= minimumCalls
+                && (failed * 100 >= failureRatePercent * total || slowed * 100 >= slowCallRatePercent * total)) {
+            openedAt.set(now);
+            state.compareAndSet(CLOSED, OPEN);
+        }
+    }
+
+    boolean isOpen() {
+        return state.get() != CLOSED;
+    }
+
+    private void resetWindow(long now) {
+
+        windowStart.set(now);
+        calls.set(0);
+        failures.set(0);
+        slowCalls.set(0);
+    }
+}
@@ -0,0 +1,87 @@
+package functions;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzips request bodies when the envelope asks for it or the destination accepts it.
+ */
+final class Compression {
+
+    static final String GZIP = "gzip";
+
+    private Compression() {
+    }
+
+    static boolean shouldCompress(Webhook webhook, Destination destination) {
+
+        if (webhook.getBody() == null || webhook.getBody().length < ProxyConfig.getInt("COMPRESS_MIN_BYTES", 1024)
+                || destination.rejectsGzipRequests()) {
+            return false;
+        }
+        if (webhook.getHeaders() != null && webhook.getHeaders().getContentEncoding() != null) {
+            return false;
+        }
+        Boolean compress = webhook.getCompress();
+        return compress != null ? compress : destination.acceptsGzipRequests();
+    }
+
+    static byte[] gzip(byte[] body) throws IOException {
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed, 8192)) {
+            out.write(body);
+        }
+        return compressed.toByteArray();
+    }
+
+    static boolean isUnsupportedEncoding(UrlResponse response) {
+
+        return response.exception instanceof HttpResponseException
+                && ((HttpResponseException) response.exception).getStatusCode() == 415;
+    }
+
+    private static double quality(String[] parts) {
+
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Records whether the destination advertises gzip for request bodies.
+     */
+    static void learn(Destination destination, UrlResponse response) {
+
+        HttpHeaders headers = null;
+        if (response.exception instanceof HttpResponseException) {
+            headers = ((HttpResponseException) response.exception).getHeaders();
+        } else if (response.exception == null) {
+            headers = response.urlResponse.getHeaders();
+        }
+        String acceptEncoding = headers == null ? null : headers.getAcceptEncoding();
+        if (acceptEncoding == null) {
+            return;
+        }
+        for (String coding : acceptEncoding.toLowerCase(Locale.ROOT).split(",")) {
+            String[] parts = coding.split(";");
+            if (parts[0].trim().equals(GZIP)) {
+                destination.gzipAdvertised(quality(parts) > 0);
+                return;
+            }
+        }
+    }
+}
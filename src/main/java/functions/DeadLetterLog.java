@@ -0,0 +1,291 @@
+package functions;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Journaled terminal failures of background deliveries, indexed by destination and failure time.
+ */
+class DeadLetterLog {
+
+    private static final Logger LOGGER = Logger.getLogger(DeadLetterLog.class.getName());
+
+    private static volatile DeadLetterLog instance;
+
+    private final Journal journal;
+    private final ConcurrentHashMap<String, HostIndex> index = new ConcurrentHashMap<>();
+
+    DeadLetterLog(Journal journal) {
+
+        this.journal = journal;
+        for (long id : journal.pending()) {
+            try {
+                Entry entry = readEntry(id);
+                index(entry.host).add(entry.failedAt, id);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot read dead letter " + id, e);
+            }
+        }
+    }
+
+    static DeadLetterLog get() throws IOException {
+
+        DeadLetterLog log = instance;
+        if (log == null) {
+            synchronized (DeadLetterLog.class) {
+                log = instance;
+                if (log == null) {
+                    File directory = new File(ProxyConfig.getString("DEAD_LETTER_DIR",
+                            new File(System.getProperty("java.io.tmpdir"), "webhook-dead-letters").getPath()));
+                    log = new DeadLetterLog(new Journal(directory,
+                            Journal.segmentBytes(),
+                            ProxyConfig.getBoolean("JOURNAL_FSYNC", false)));
+                    instance = log;
+                }
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Records {@code response} if it is a terminal failure worth replaying. Errors writing the log are
+     * logged and otherwise ignored, so they never change the outcome of the delivery itself.
+     */
+    static void recordIfFailed(Webhook webhook, Destination destination, UrlResponse response) {
+
+        if (!isDeadLetter(webhook, response) || !ProxyConfig.getBoolean("DEAD_LETTER_ENABLED", true)
+                || !webhook.isBackground() && !ProxyConfig.getBoolean("DEAD_LETTER_SYNC", false)) {
+            return;
+        }
+        try {
+            get().record(webhook, destination.getHost(), response.getStatusCode(), System.currentTimeMillis());
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Cannot record dead letter for " + webhook.getUrl(), e);
+        }
+    }
+
+    static boolean isDeadLetter(Webhook webhook, UrlResponse response) {
+
+        if (response.exception == null || webhook.getStreamingBody() != null) {
+            return false;
+        }
+        // a 304 answers a revalidation of a cached GET and is not a failure
+        return !(response.exception instanceof HttpResponseException)
+                || ((HttpResponseException) response.exception).getStatusCode() != 304;
+    }
+
+    long record(Webhook webhook, String host, int status, long failedAt) throws IOException {
+
+        byte[] encoded = WebhookCodec.encode(webhook);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(encoded.length + host.length() + 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(failedAt);
+        out.writeInt(status);
+        out.writeUTF(host);
+        out.write(encoded);
+        out.flush();
+        long id = journal.append(bytes.toByteArray());
+        index(host).add(failedAt, id);
+        return id;
+    }
+
+    /**
+     * Returns up to {@code limit} entries for {@code host} that failed within
+     * {@code [fromMillis, toMillis)}, oldest first, or for every host when {@code host} is null.
+     */
+    List<Entry> find(String host, long fromMillis, long toMillis, int limit) {
+
+        List<Entry> entries = new ArrayList<>();
+        for (HostIndex hostIndex : host == null ? index.values() : singleton(index.get(host))) {
+            for (long id : hostIndex.find(fromMillis, toMillis, limit - entries.size())) {
+                try {
+                    entries.add(readEntry(id));
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Cannot read dead letter " + id, e);
+                }
+            }
+            if (entries.size() >= limit) {
+                break;
+            }
+        }
+        return entries;
+    }
+
+    Webhook webhook(long id) throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal.read(id)));
+        in.readLong();
+        in.readInt();
+        in.readUTF();
+        return WebhookCodec.decode(in.readAllBytes());
+    }
+
+    void remove(Entry entry) throws IOException {
+
+        HostIndex hostIndex = index.get(entry.host);
+        if (hostIndex != null) {
+            hostIndex.remove(entry.failedAt, entry.id);
+        }
+        journal.markDone(entry.id);
+    }
+
+    int size() {
+
+        int size = 0;
+        for (HostIndex hostIndex : index.values()) {
+            size += hostIndex.size();
+        }
+        return size;
+    }
+
+    static void writeEntries(List<Entry> entries, Writer writer) throws IOException {
+
+        JsonWriter jsonWriter = new JsonWriter(writer);
+        jsonWriter.beginArray();
+        for (Entry entry : entries) {
+            jsonWriter.beginObject();
+            jsonWriter.name("id").value(String.valueOf(entry.id));
+            jsonWriter.name("destination").value(entry.host);
+            jsonWriter.name("failedAt").value(entry.failedAt);
+            jsonWriter.name("status").value(entry.status);
+            jsonWriter.endObject();
+        }
+        jsonWriter.endArray();
+        jsonWriter.flush();
+    }
+
+    private Entry readEntry(long id) throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal.read(id)));
+        long failedAt = in.readLong();
+        int status = in.readInt();
+        return new Entry(id, in.readUTF(), failedAt, status);
+    }
+
+    private HostIndex index(String host) {
+        return index.computeIfAbsent(host, key -> new HostIndex());
+    }
+
+    private static List<HostIndex> singleton(HostIndex hostIndex) {
+        return hostIndex == null ? List.of() : List.of(hostIndex);
+    }
+
+    static final class Entry {
+
+        final long id;
+        final String host;
+        final long failedAt;
+        final int status;
+
+        Entry(long id, String host, long failedAt, int status) {
+            this.id = id;
+            this.host = host;
+            this.failedAt = failedAt;
+            this.status = status;
+        }
+    }
+
+    /**
+     * Failure times and journal ids of one host in parallel arrays sorted by time. Removed entries
+     * are tombstoned and squeezed out once they make up half of the arrays.
+     */
+    private static final class HostIndex {
+
+        private static final long REMOVED = Long.MIN_VALUE;
+
+        private long[] times = new long[16];
+        private long[] ids = new long[16];
+        private int count;
+        private int removed;
+
+        synchronized void add(long time, long id) {
+
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            // clocks may step back; keep the arrays sorted by shifting the few later entries
+            int at = count;
+            while (at > 0 && times[at - 1] > time) {
+                at--;
+            }
+            System.arraycopy(times, at, times, at + 1, count - at);
+            System.arraycopy(ids, at, ids, at + 1, count - at);
+            times[at] = time;
+            ids[at] = id;
+            count++;
+        }
+
+        synchronized List<Long> find(long fromMillis, long toMillis, int limit) {
+
+            List<Long> found = new ArrayList<>();
+            for (int i = lowerBound(fromMillis); i < count && times[i] < toMillis && found.size() < limit; i++) {
+                if (ids[i] != REMOVED) {
+                    found.add(ids[i]);
+                }
+            }
+            return found;
+        }
+
+        synchronized void remove(long time, long id) {
+
+            for (int i = lowerBound(time); i < count && times[i] == time; i++) {
+                if (ids[i] == id) {
+                    ids[i] = REMOVED;
+                    removed++;
+                    break;
+                }
+            }
+            if (removed > count / 2) {
+                compact();
+            }
+        }
+
+        synchronized int size() {
+            return count - removed;
+        }
+
+        private int lowerBound(long time) {
+
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (times[middle] < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private void compact() {
+
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                if (ids[i] != REMOVED) {
+                    times[kept] = times[i];
+                    ids[kept] = ids[i];
+                    kept++;
+                }
+            }
+            count = kept;
+            removed = 0;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package functions;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Re-drives dead letters through the normal send path at a requested rate.
+ */
+final class DeadLetterReplay {
+
+    private static final Logger LOGGER = Logger.getLogger(DeadLetterReplay.class.getName());
+
+    private static final ExecutorService REPLAYS =
+            Executors.newSingleThreadExecutor(DispatchExecutor.daemonThreads("webhook-replay"));
+    private static final Set<Long> REPLAYING = ConcurrentHashMap.newKeySet();
+
+    private DeadLetterReplay() {
+    }
+
+    /**
+     * Queues the replay of {@code entries} at {@code perSecond} and returns how many were queued;
+     * entries already being replayed are skipped.
+     */
+    static int replay(DeadLetterLog log, WebhookSender sender, List<DeadLetterLog.Entry> entries, double perSecond) {
+
+        entries.removeIf(entry -> !REPLAYING.add(entry.id));
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        Semaphore inFlight = new Semaphore(ProxyConfig.getInt("REPLAY_MAX_IN_FLIGHT", 16));
+        TokenBucket pacer = new TokenBucket(new RateLimit(perSecond, 1));
+        REPLAYS.execute(() -> {
+            for (DeadLetterLog.Entry entry : entries) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(pacer.reserve(Long.MAX_VALUE));
+                    inFlight.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    entries.forEach(pending -> REPLAYING.remove(pending.id));
+                    return;
+                }
+                redrive(log, sender, entry, inFlight);
+            }
+        });
+        return entries.size();
+    }
+
+    private static void redrive(DeadLetterLog log, WebhookSender sender, DeadLetterLog.Entry entry,
+                                Semaphore inFlight) {
+
+        Webhook webhook;
+        try {
+            webhook = log.webhook(entry.id);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot read dead letter " + entry.id, e);
+            finish(log, entry, inFlight);
+            return;
+        }
+        webhook.setBackground(true);
+        sender.sendAsync(webhook).whenComplete((response, error) -> {
+            try {
+                if (response != null && response.exception == null) {
+                    response.urlResponse.disconnect();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Replay of dead letter " + entry.id + " failed", e);
+            } finally {
+                finish(log, entry, inFlight);
+            }
+        });
+    }
+
+    private static void finish(DeadLetterLog log, DeadLetterLog.Entry entry, Semaphore inFlight) {
+
+        inFlight.release();
+        try {
+            log.remove(entry);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot remove dead letter " + entry.id, e);
+        } finally {
+            REPLAYING.remove(entry.id);
+        }
+    }
+}
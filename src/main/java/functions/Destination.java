@@ -0,0 +1,179 @@
+package functions;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponseException;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-host state shared by every call to the same destination.
+ */
+final class Destination {
+
+    private static final ConcurrentHashMap<String, Destination> DESTINATIONS = new ConcurrentHashMap<>();
+    private static final int MAX_REQUESTED_LIMITERS = 64;
+
+    private final String host;
+    private final CircuitBreaker circuitBreaker = CircuitBreaker.fromConfig();
+    private final Bulkhead bulkhead = new Bulkhead(ProxyConfig.getInt("BULKHEAD_MAX_CONCURRENT", 64));
+    private final RetryBudget retryBudget = RetryBudget.fromConfig();
+    private final LatencyTracker latency = new LatencyTracker(ProxyConfig.getInt("LATENCY_WINDOW", 256),
+            ProxyConfig.getInt("LATENCY_MIN_SAMPLES", 20));
+    private final long maxRateLimitWaitNanos =
+            TimeUnit.MILLISECONDS.toNanos(ProxyConfig.getLong("RATE_LIMIT_MAX_WAIT_MS", 2_000));
+    private final TokenBucket rateLimiter;
+    private final ConcurrentHashMap<RateLimit, TokenBucket> requestedLimiters = new ConcurrentHashMap<>();
+    // 1 once gzip request bodies are advertised, -1 once they have been refused, 0 until then
+    private volatile int gzipRequests;
+
+    private Destination(String host) {
+
+        this.host = host;
+        RateLimit limit = RateLimit.configured(host);
+        rateLimiter = limit == null ? null : new TokenBucket(limit);
+    }
+
+    static Destination of(String url) {
+
+        GenericUrl genericUrl = new GenericUrl(url);
+        String host = genericUrl.getHost().toLowerCase(Locale.ROOT);
+        if (genericUrl.getPort() != -1) {
+            host = host + ":" + genericUrl.getPort();
+        }
+        return DESTINATIONS.computeIfAbsent(host, Destination::new);
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    boolean isCircuitOpen() {
+        return circuitBreaker.isOpen();
+    }
+
+    RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    boolean acceptsGzipRequests() {
+        return gzipRequests > 0;
+    }
+
+    boolean rejectsGzipRequests() {
+        return gzipRequests < 0;
+    }
+
+    void gzipAdvertised(boolean accepted) {
+        gzipRequests = accepted ? 1 : -1;
+    }
+
+    void gzipRejected() {
+        gzipRequests = -1;
+    }
+
+    /**
+     * Reserves a slot under the host's rate limit and returns how long to wait before sending, 0
+     * when the host is not limited. A limit given with the request is applied on top of the
+     * configured one, in a bucket shared only by the calls that ask for the same limit.
+     */
+    long reserve(RateLimit requested) throws RateLimitedException {
+
+        long wait = reserve(rateLimiter);
+        if (requested != null) {
+            if (requestedLimiters.size() >= MAX_REQUESTED_LIMITERS && !requestedLimiters.containsKey(requested)) {
+                requestedLimiters.clear();
+            }
+            wait = Math.max(wait, reserve(requestedLimiters.computeIfAbsent(requested, TokenBucket::new)));
+        }
+        return wait;
+    }
+
+    private long reserve(TokenBucket limiter) throws RateLimitedException {
+
+        if (limiter == null) {
+            return 0;
+        }
+        long wait = limiter.reserve(maxRateLimitWaitNanos);
+        if (wait < 0) {
+            throw new RateLimitedException("Rate limit exceeded for " + host);
+        }
+        return wait;
+    }
+
+    /**
+     * Holds back calls to a rate-limited host that answered 429 until its {@code Retry-After} passes.
+     */
+    void throttled(long retryAfterMs) {
+
+        if (retryAfterMs <= 0) {
+            return;
+        }
+        long pauseNanos = TimeUnit.MILLISECONDS.toNanos(Math.min(retryAfterMs, 60_000));
+        if (rateLimiter != null) {
+            rateLimiter.pause(pauseNanos);
+        }
+        requestedLimiters.values().forEach(limiter -> limiter.pause(pauseNanos));
+    }
+
+    void acquire() throws DestinationRejectedException {
+
+        if (!bulkhead.tryAcquire()) {
+            throw new DestinationRejectedException(429, "bulkhead", "Too many concurrent requests to " + host);
+        }
+        if (!circuitBreaker.tryAcquire()) {
+            bulkhead.release();
+            throw new DestinationRejectedException(503, "circuit", "Circuit open for " + host);
+        }
+    }
+
+    void release(UrlResponse response, long durationNanos) {
+
+        bulkhead.release();
+        circuitBreaker.record(isFailure(response.exception), durationNanos);
+        if (response.exception == null || response.exception instanceof HttpResponseException) {
+            latency.record(durationNanos);
+        }
+    }
+
+    /**
+     * Returns how long to wait for a call before hedging it: the recent p95 latency, at least
+     * {@code HEDGE_MIN_DELAY_MS}, or -1 while the host has too little history.
+     */
+    long hedgeDelayMillis() {
+
+        long p95 = latency.percentileMillis(0.95);
+        return p95 < 0 ? -1 : Math.max(p95, ProxyConfig.getLong("HEDGE_MIN_DELAY_MS", 10));
+    }
+
+    /**
+     * Returns the read timeout for a call in milliseconds. When adaptive timeouts apply (with
+     * {@code ADAPTIVE_TIMEOUTS}, or for webhooks with fallback urls) and the host has enough history,
+     * it is {@code ADAPTIVE_TIMEOUT_MULTIPLIER} times the recent p99, at least
+     * {@code ADAPTIVE_TIMEOUT_MIN_MS} and never above the webhook's own timeout.
+     */
+    int readTimeoutMillis(Webhook webhook) {
+
+        int configured = webhook.getTimeout() * 1000;
+        if (!ProxyConfig.getBoolean("ADAPTIVE_TIMEOUTS", false) && webhook.getFallbackUrls() == null) {
+            return configured;
+        }
+        long p99 = latency.percentileMillis(0.99);
+        if (p99 < 0) {
+            return configured;
+        }
+        long adaptive = Math.max(ProxyConfig.getLong("ADAPTIVE_TIMEOUT_MIN_MS", 250),
+                p99 * ProxyConfig.getInt("ADAPTIVE_TIMEOUT_MULTIPLIER", 3));
+        return (int) Math.min(adaptive, configured == 0 ? Integer.MAX_VALUE : configured);
+    }
+
+    private static boolean isFailure(Exception exception) {
+
+        if (exception == null) {
+            return false;
+        }
+        return !(exception instanceof HttpResponseException)
+                || ((HttpResponseException) exception).getStatusCode() >= 500;
+    }
+}
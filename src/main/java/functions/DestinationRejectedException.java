@@ -0,0 +1,28 @@
+package functions;
+
+public class DestinationRejectedException extends Exception {
+
+    /**
+     * Response header naming what turned a call away before it reached the destination, so that a
+     * rejection can be told apart from the same status returned by the destination itself.
+     */
+    static final String REJECTED_HEADER = "X-Proxy-Rejected";
+
+    private final int statusCode;
+    private final String reason;
+
+    public DestinationRejectedException(int statusCode, String reason, String message) {
+        super(message);
+        this.statusCode = statusCode;
+        this.reason = reason;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+}
@@ -0,0 +1,183 @@
+package functions;
+
+import org.apache.http.conn.DnsResolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolver cache with refresh-ahead and stale-if-error for the pooled transport.
+ */
+final class DnsCache implements DnsResolver {
+
+    private static volatile DnsCache instance;
+
+    private static final ExecutorService REFRESHER =
+            Executors.newSingleThreadExecutor(DispatchExecutor.daemonThreads("dns-refresh"));
+
+    private final Lookup lookup;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final long refreshAheadNanos;
+    private final long staleIfErrorNanos;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+
+    DnsCache(Lookup lookup, int maxEntries, long ttlMs, long negativeTtlMs, int refreshAheadPercent,
+             long staleIfErrorMs) {
+
+        this.lookup = lookup;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMs);
+        this.refreshAheadNanos = ttlNanos * Math.max(0, Math.min(100, refreshAheadPercent)) / 100;
+        this.staleIfErrorNanos = TimeUnit.MILLISECONDS.toNanos(staleIfErrorMs);
+    }
+
+    /**
+     * Returns the shared cache, or {@code null} when {@code DNS_CACHE_MAX_ENTRIES} is 0 and the
+     * transport should resolve through the system resolver directly.
+     */
+    static DnsCache get() {
+
+        DnsCache cache = instance;
+        if (cache == null) {
+            synchronized (DnsCache.class) {
+                cache = instance;
+                if (cache == null) {
+                    int maxEntries = ProxyConfig.getInt("DNS_CACHE_MAX_ENTRIES", 1024);
+                    if (maxEntries <= 0) {
+                        return null;
+                    }
+                    cache = new DnsCache(InetAddress::getAllByName, maxEntries,
+                            ProxyConfig.getLong("DNS_CACHE_TTL_MS", 60_000),
+                            ProxyConfig.getLong("DNS_CACHE_NEGATIVE_TTL_MS", 5_000),
+                            ProxyConfig.getInt("DNS_CACHE_REFRESH_AHEAD_PERCENT", 75),
+                            ProxyConfig.getLong("DNS_CACHE_STALE_IF_ERROR_MS", 60_000));
+                    instance = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the shared cache if it has been created, without creating it.
+     */
+    static DnsCache current() {
+        return instance;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+
+        String key = host.toLowerCase(Locale.ROOT);
+        long now = System.nanoTime();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt - now > 0) {
+            hits.increment();
+            if (entry.addresses == null) {
+                throw new UnknownHostException(entry.failure);
+            }
+            if (now - entry.resolvedAt > refreshAheadNanos && entry.refreshing.compareAndSet(false, true)) {
+                REFRESHER.execute(() -> refresh(key, entry));
+            }
+            return entry.addresses.clone();
+        }
+        misses.increment();
+        return load(key, entry).clone();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long refreshes() {
+        return refreshes.sum();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private InetAddress[] load(String host, Entry previous) throws UnknownHostException {
+
+        try {
+            InetAddress[] addresses = lookup.resolve(host);
+            put(host, new Entry(addresses, null, System.nanoTime(), ttlNanos));
+            return addresses;
+        } catch (UnknownHostException e) {
+            long now = System.nanoTime();
+            if (previous != null && previous.addresses != null && now - previous.expiresAt < staleIfErrorNanos) {
+                return previous.addresses;
+            }
+            put(host, new Entry(null, String.valueOf(e.getMessage()), now, negativeTtlNanos));
+            throw e;
+        }
+    }
+
+    private void refresh(String host, Entry current) {
+
+        try {
+            InetAddress[] addresses = lookup.resolve(host);
+            entries.replace(host, current, new Entry(addresses, null, System.nanoTime(), ttlNanos));
+            refreshes.increment();
+        } catch (UnknownHostException | RuntimeException e) {
+            // keep serving the current addresses until they expire
+        } finally {
+            current.refreshing.set(false);
+        }
+    }
+
+    private void put(String host, Entry entry) {
+
+        entries.put(host, entry);
+        if (entries.size() > maxEntries) {
+            long now = System.nanoTime();
+            entries.values().removeIf(e -> e.expiresAt - now <= 0);
+            Iterator<String> iterator = entries.keySet().iterator();
+            while (entries.size() > maxEntries && iterator.hasNext()) {
+                if (!iterator.next().equals(host)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    interface Lookup {
+
+        InetAddress[] resolve(String host) throws UnknownHostException;
+    }
+
+    private static final class Entry {
+
+        final InetAddress[] addresses;
+        final String failure;
+        final long resolvedAt;
+        final long expiresAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(InetAddress[] addresses, String failure, long resolvedAt, long ttlNanos) {
+
+            this.addresses = addresses;
+            this.failure = failure;
+            this.resolvedAt = resolvedAt;
+            this.expiresAt = resolvedAt + ttlNanos;
+        }
+    }
+}
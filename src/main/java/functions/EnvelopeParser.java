@@ -0,0 +1,660 @@
+package functions;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the proxy request envelope in a single pass over a streaming {@link JsonReader}.
+ */
+final class EnvelopeParser {
+
+    private static final int MAX_FALLBACK_URLS = 5;
+    private static final long MAX_DELAY_MS = TimeUnit.DAYS.toMillis(366);
+    private static final Pattern URL_PATTERN = Pattern.compile("^(http|https)://([^:/\\s]+)(:\\d+)?(/[^/\\s]*)*$");
+
+    private EnvelopeParser() {
+    }
+
+    static Webhook parse(Reader reader) throws IOException, ValidationException {
+
+        long start = System.nanoTime();
+        JsonReader jsonReader = newReader(reader);
+        Envelope envelope;
+        try {
+            expect(jsonReader, JsonToken.BEGIN_OBJECT);
+            envelope = readEnvelope(jsonReader);
+            expect(jsonReader, JsonToken.END_DOCUMENT);
+        } catch (MalformedJsonException | EOFException e) {
+            throw new ValidationException("Invalid Request Body");
+        } finally {
+            Metrics.record(Metrics.Stage.PARSE, start);
+        }
+        start = System.nanoTime();
+        try {
+            return envelope.validate();
+        } finally {
+            Metrics.record(Metrics.Stage.VALIDATE, start);
+        }
+    }
+
+    /**
+     * Parses an envelope without reading its body into memory. The fields before the top-level
+     * {@code body} are scanned into a small head document (at most {@code maxHeadChars}) and parsed as
+     * usual; the reader is then left at the body string, which {@link StreamingBody} decodes as it is
+     * sent. An envelope without a body field is parsed normally.
+     */
+    static Webhook parseStreaming(Reader reader, int maxHeadChars) throws IOException, ValidationException {
+
+        long start = System.nanoTime();
+        StringBuilder head = new StringBuilder(512);
+        Envelope envelope = null;
+        boolean bodyless = false;
+        try {
+            bodyless = !readHead(reader, head, maxHeadChars);
+            if (!bodyless) {
+                JsonReader jsonReader = newReader(new StringReader(head.toString()));
+                expect(jsonReader, JsonToken.BEGIN_OBJECT);
+                envelope = readEnvelope(jsonReader);
+                expect(jsonReader, JsonToken.END_DOCUMENT);
+            }
+        } catch (MalformedJsonException | EOFException e) {
+            throw new ValidationException("Invalid Request Body");
+        } finally {
+            // parse() below records its own PARSE stage
+            if (!bodyless) {
+                Metrics.record(Metrics.Stage.PARSE, start);
+            }
+        }
+        if (bodyless) {
+            return parse(new StringReader(head.toString()));
+        }
+
+        envelope.hasBody = true;
+        int c;
+        do {
+            c = reader.read();
+        } while (c != -1 && Character.isWhitespace(c));
+        if (c == '"') {
+            envelope.webhook.setBody(new byte[0]);
+            envelope.webhook.setStreamingBody(new StreamingBody(reader));
+        } else {
+            envelope.bodyError = "Invalid Request Body";
+        }
+        start = System.nanoTime();
+        try {
+            return envelope.validate();
+        } finally {
+            Metrics.record(Metrics.Stage.VALIDATE, start);
+        }
+    }
+
+    /**
+     * Copies the envelope into {@code head} until the colon after the top-level {@code body} key, then
+     * rewrites {@code head} as the object without that field and returns {@code true}. Returns
+     * {@code false} with the whole document in {@code head} when there is no such key.
+     */
+    private static boolean readHead(Reader reader, StringBuilder head, int maxHeadChars)
+            throws IOException, ValidationException {
+
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        int stringStart = -1;
+        String key = null;
+        int keyStart = -1;
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (head.length() >= maxHeadChars) {
+                throw new ValidationException("Invalid Request Body");
+            }
+            char ch = (char) c;
+            if (inString) {
+                head.append(ch);
+                if (escaped) {
+                    escaped = false;
+                } else if (ch == '\\') {
+                    escaped = true;
+                } else if (ch == '"') {
+                    inString = false;
+                    key = head.substring(stringStart + 1, head.length() - 1);
+                    keyStart = stringStart;
+                }
+                continue;
+            }
+            if (ch == ':' && depth == 1 && "body".equals(key)) {
+                head.setLength(keyStart);
+                int end = head.length();
+                while (end > 0 && (Character.isWhitespace(head.charAt(end - 1)) || head.charAt(end - 1) == ',')) {
+                    end--;
+                }
+                head.setLength(end);
+                head.append('}');
+                return true;
+            }
+            head.append(ch);
+            if (ch == '"') {
+                inString = true;
+                stringStart = head.length() - 1;
+            } else if (ch == '{' || ch == '[') {
+                depth++;
+            } else if (ch == '}' || ch == ']') {
+                depth--;
+            }
+            if (!Character.isWhitespace(ch)) {
+                key = null;
+            }
+        }
+        return false;
+    }
+
+    static List<Envelope> parseBatch(Reader reader, int maxItems) throws IOException, ValidationException {
+
+        JsonReader jsonReader = newReader(reader);
+        List<Envelope> envelopes = new ArrayList<>();
+        try {
+            expect(jsonReader, JsonToken.BEGIN_ARRAY);
+            jsonReader.beginArray();
+            while (jsonReader.hasNext()) {
+                if (envelopes.size() == maxItems) {
+                    throw new ValidationException("Too Many Batch Items");
+                }
+                if (jsonReader.peek() == JsonToken.BEGIN_OBJECT) {
+                    envelopes.add(readEnvelope(jsonReader));
+                } else {
+                    jsonReader.skipValue();
+                    Envelope envelope = new Envelope();
+                    envelope.envelopeError = "Invalid Request Body";
+                    envelopes.add(envelope);
+                }
+            }
+            jsonReader.endArray();
+            expect(jsonReader, JsonToken.END_DOCUMENT);
+        } catch (MalformedJsonException | EOFException e) {
+            throw new ValidationException("Invalid Request Body");
+        }
+        return envelopes;
+    }
+
+    private static JsonReader newReader(Reader reader) {
+
+        JsonReader jsonReader = new JsonReader(reader);
+        jsonReader.setLenient(true);
+        return jsonReader;
+    }
+
+    private static void expect(JsonReader reader, JsonToken token) throws IOException, ValidationException {
+
+        if (reader.peek() != token) {
+            throw new ValidationException("Invalid Request Body");
+        }
+    }
+
+    static Envelope readEnvelope(JsonReader reader) throws IOException {
+
+        Envelope envelope = new Envelope();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "url":
+                    readUrl(reader, envelope);
+                    break;
+                case "body":
+                    readBody(reader, envelope);
+                    break;
+                case "headers":
+                    readHeaders(reader, envelope);
+                    break;
+                case "options":
+                    readOptions(reader, envelope);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return envelope;
+    }
+
+    private static void readUrl(JsonReader reader, Envelope envelope) throws IOException {
+
+        envelope.hasUrl = true;
+        String url = readString(reader);
+        if (url == null) {
+            envelope.urlError = "Invalid Request Url";
+        }
+        envelope.webhook.setUrl(url);
+    }
+
+    private static void readBody(JsonReader reader, Envelope envelope) throws IOException {
+
+        envelope.hasBody = true;
+        String bodyBase64 = readString(reader);
+        try {
+            if (bodyBase64 == null) {
+                throw new IllegalArgumentException();
+            }
+            envelope.webhook.setBody(Base64.getDecoder().decode(bodyBase64));
+        } catch (IllegalArgumentException e) {
+            envelope.bodyError = "Invalid Request Body";
+        }
+    }
+
+    private static void readHeaders(JsonReader reader, Envelope envelope) throws IOException {
+
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            envelope.headersError = "Invalid Request Headers";
+            return;
+        }
+        HttpHeaders httpHeaders = new HttpHeaders().setAcceptEncoding(null);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String headerKey = reader.nextName();
+            String headerValue = readString(reader);
+            if (headerValue == null) {
+                envelope.headersError = "Invalid Request Headers";
+            } else {
+                httpHeaders.set(headerKey, headerValue.trim());
+            }
+        }
+        reader.endObject();
+        envelope.webhook.setHeaders(httpHeaders);
+    }
+
+    private static void readOptions(JsonReader reader, Envelope envelope) throws IOException {
+
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            envelope.optionError("Invalid Request Options");
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "timeout":
+                    Integer timeout = readInt(reader);
+                    if (timeout == null || timeout < 0 || timeout > 3600) {
+                        envelope.optionError("Invalid Timeout Value");
+                    } else {
+                        envelope.webhook.setTimeout(timeout);
+                    }
+                    break;
+                case "method":
+                    String method = readString(reader);
+                    if (method == null || !WebhookSender.METHODS.contains(method.toUpperCase(Locale.ROOT))) {
+                        envelope.optionError("Invalid Method Value");
+                    } else {
+                        envelope.webhook.setMethod(method.toUpperCase(Locale.ROOT));
+                    }
+                    break;
+                case "transport":
+                    String transport = readString(reader);
+                    if (transport == null || !TransportRegistry.isKnown(transport.toLowerCase(Locale.ROOT))) {
+                        envelope.optionError("Invalid Transport Value");
+                    } else {
+                        envelope.webhook.setTransport(transport.toLowerCase(Locale.ROOT));
+                    }
+                    break;
+                case "retry":
+                    RetryPolicy retryPolicy = readRetry(reader);
+                    if (retryPolicy == null) {
+                        envelope.optionError("Invalid Retry Value");
+                    } else {
+                        envelope.webhook.setRetryPolicy(retryPolicy);
+                    }
+                    break;
+                case "idempotencyKey":
+                    String idempotencyKey = readString(reader);
+                    if (idempotencyKey == null || idempotencyKey.isEmpty() || idempotencyKey.length() > 255) {
+                        envelope.optionError("Invalid Idempotency Key");
+                    } else {
+                        envelope.webhook.setIdempotencyKey(idempotencyKey);
+                    }
+                    break;
+                case "async":
+                    Boolean async = readBoolean(reader);
+                    if (async == null) {
+                        envelope.optionError("Invalid Async Value");
+                    } else {
+                        envelope.webhook.setAsync(async);
+                    }
+                    break;
+                case "compress":
+                    Boolean compress = readBoolean(reader);
+                    if (compress == null) {
+                        envelope.optionError("Invalid Compress Value");
+                    } else {
+                        envelope.webhook.setCompress(compress);
+                    }
+                    break;
+                case "coalesce":
+                    Boolean coalesce = readBoolean(reader);
+                    if (coalesce == null) {
+                        envelope.optionError("Invalid Coalesce Value");
+                    } else {
+                        envelope.webhook.setCoalesce(coalesce);
+                    }
+                    break;
+                case "rateLimit":
+                    RateLimit rateLimit = readRateLimit(reader);
+                    if (rateLimit == null) {
+                        envelope.optionError("Invalid Rate Limit Value");
+                    } else {
+                        envelope.webhook.setRateLimit(rateLimit);
+                    }
+                    break;
+                case "priority":
+                    Priority priority = Priority.parse(readString(reader));
+                    if (priority == null) {
+                        envelope.optionError("Invalid Priority Value");
+                    } else {
+                        envelope.webhook.setPriority(priority);
+                    }
+                    break;
+                case "tenant":
+                    String tenant = readString(reader);
+                    if (tenant == null || tenant.isEmpty() || tenant.length() > 255) {
+                        envelope.optionError("Invalid Tenant Value");
+                    } else {
+                        envelope.webhook.setTenant(tenant);
+                    }
+                    break;
+                case "idempotent":
+                    Boolean idempotent = readBoolean(reader);
+                    if (idempotent == null) {
+                        envelope.optionError("Invalid Idempotent Value");
+                    } else {
+                        envelope.webhook.setIdempotent(idempotent);
+                    }
+                    break;
+                case "fallbackUrls":
+                    List<String> fallbackUrls = new ArrayList<>();
+                    boolean validUrls = readArray(reader, element -> {
+                        String fallbackUrl = readString(element);
+                        if (fallbackUrl == null || !URL_PATTERN.matcher(fallbackUrl).matches()) {
+                            return false;
+                        }
+                        fallbackUrls.add(fallbackUrl);
+                        return true;
+                    });
+                    if (!validUrls || fallbackUrls.size() > MAX_FALLBACK_URLS) {
+                        envelope.optionError("Invalid Fallback Urls");
+                    } else if (!fallbackUrls.isEmpty()) {
+                        envelope.webhook.setFallbackUrls(fallbackUrls);
+                    }
+                    break;
+                case "deliverAt":
+                    Long deliverAt = readLong(reader);
+                    if (deliverAt == null || deliverAt < 0) {
+                        envelope.optionError("Invalid Deliver At Value");
+                    } else {
+                        envelope.webhook.setDeliverAt(deliverAt);
+                    }
+                    break;
+                case "delayMs":
+                    Long delayMs = readLong(reader);
+                    if (delayMs == null || delayMs < 0 || delayMs > MAX_DELAY_MS) {
+                        envelope.optionError("Invalid Delay Value");
+                    } else {
+                        envelope.webhook.setDeliverAt(System.currentTimeMillis() + delayMs);
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static RateLimit readRateLimit(JsonReader reader) throws IOException {
+
+        RateLimit limit = new RateLimit();
+        if (reader.peek() == JsonToken.NUMBER) {
+            Double perSecond = readDouble(reader);
+            if (perSecond == null || perSecond <= 0) {
+                return null;
+            }
+            limit.setPerSecond(perSecond);
+            return limit;
+        }
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        boolean valid = true;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "perSecond":
+                    Double perSecond = readDouble(reader);
+                    valid &= perSecond != null && perSecond > 0;
+                    limit.setPerSecond(perSecond == null ? 0 : perSecond);
+                    break;
+                case "burst":
+                    Integer burst = readInt(reader);
+                    valid &= burst != null && burst >= 1;
+                    limit.setBurst(burst == null ? 1 : burst);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return valid && limit.getPerSecond() > 0 ? limit : null;
+    }
+
+    private static RetryPolicy readRetry(JsonReader reader) throws IOException {
+
+        RetryPolicy policy = new RetryPolicy();
+        if (reader.peek() == JsonToken.NUMBER) {
+            Integer maxAttempts = readInt(reader);
+            if (maxAttempts == null || maxAttempts < 1 || maxAttempts > 10) {
+                return null;
+            }
+            policy.setMaxAttempts(maxAttempts);
+            return policy;
+        }
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        boolean valid = true;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "maxAttempts":
+                    Integer maxAttempts = readInt(reader);
+                    valid &= maxAttempts != null && maxAttempts >= 1 && maxAttempts <= 10;
+                    policy.setMaxAttempts(maxAttempts == null ? 1 : maxAttempts);
+                    break;
+                case "initialBackoffMs":
+                    Integer initialBackoffMs = readInt(reader);
+                    valid &= initialBackoffMs != null && initialBackoffMs >= 0;
+                    policy.setInitialBackoffMs(initialBackoffMs == null ? 0 : initialBackoffMs);
+                    break;
+                case "maxBackoffMs":
+                    Integer maxBackoffMs = readInt(reader);
+                    valid &= maxBackoffMs != null && maxBackoffMs >= 0;
+                    policy.setMaxBackoffMs(maxBackoffMs == null ? 0 : maxBackoffMs);
+                    break;
+                case "multiplier":
+                    Double multiplier = readDouble(reader);
+                    valid &= multiplier != null && multiplier >= 1;
+                    policy.setMultiplier(multiplier == null ? 1 : multiplier);
+                    break;
+                case "retryOn":
+                    Set<Integer> statusCodes = new HashSet<>();
+                    valid &= readArray(reader, element -> {
+                        Integer statusCode = readInt(element);
+                        if (statusCode == null) {
+                            return false;
+                        }
+                        statusCodes.add(statusCode);
+                        return true;
+                    });
+                    policy.setStatusCodes(statusCodes);
+                    break;
+                case "retryOnExceptions":
+                    Set<String> exceptions = new HashSet<>();
+                    valid &= readArray(reader, element -> {
+                        String exception = readString(element);
+                        if (exception == null) {
+                            return false;
+                        }
+                        exceptions.add(exception);
+                        return true;
+                    });
+                    policy.setExceptions(exceptions);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return valid ? policy : null;
+    }
+
+    private static boolean readArray(JsonReader reader, ElementReader elementReader) throws IOException {
+
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return false;
+        }
+        boolean valid = true;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            valid &= elementReader.read(reader);
+        }
+        reader.endArray();
+        return valid;
+    }
+
+    private interface ElementReader {
+
+        boolean read(JsonReader reader) throws IOException;
+    }
+
+    private static String readString(JsonReader reader) throws IOException {
+
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    private static Integer readInt(JsonReader reader) throws IOException {
+
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            try {
+                return reader.nextInt();
+            } catch (NumberFormatException e) {
+                reader.skipValue();
+                return null;
+            }
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    private static Long readLong(JsonReader reader) throws IOException {
+
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            try {
+                return reader.nextLong();
+            } catch (NumberFormatException e) {
+                reader.skipValue();
+                return null;
+            }
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    private static Double readDouble(JsonReader reader) throws IOException {
+
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            try {
+                return reader.nextDouble();
+            } catch (NumberFormatException e) {
+                reader.skipValue();
+                return null;
+            }
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    private static Boolean readBoolean(JsonReader reader) throws IOException {
+
+        if (reader.peek() == JsonToken.BOOLEAN) {
+            return reader.nextBoolean();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    static final class Envelope {
+
+        final Webhook webhook = new Webhook();
+        String envelopeError;
+        boolean hasUrl;
+        boolean hasBody;
+        String urlError;
+        String bodyError;
+        String headersError;
+        String optionsError;
+
+        void optionError(String message) {
+
+            if (optionsError == null) {
+                optionsError = message;
+            }
+        }
+
+        Webhook validate() throws ValidationException {
+
+            if (envelopeError != null) {
+                throw new ValidationException(envelopeError);
+            }
+            if (!hasUrl) {
+                throw new ValidationException("Url is missing");
+            }
+            if (urlError != null || !URL_PATTERN.matcher(webhook.getUrl()).matches()) {
+                throw new ValidationException("Invalid Request Url");
+            }
+            if (!hasBody) {
+                throw new ValidationException("Body is missing");
+            }
+            if (bodyError != null) {
+                throw new ValidationException(bodyError);
+            }
+            if (headersError != null) {
+                throw new ValidationException(headersError);
+            }
+            if (optionsError != null) {
+                throw new ValidationException(optionsError);
+            }
+            return webhook;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package functions;
+
+import com.google.api.client.http.HttpHeaders;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Byte-bounded LRU cache of GET responses, following {@code Cache-Control} and validators.
+ */
+final class HttpResponseCache {
+
+    private static volatile HttpResponseCache instance;
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    HttpResponseCache(long maxBytes, int maxEntryBytes) {
+
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    static HttpResponseCache get() {
+
+        HttpResponseCache cache = instance;
+        if (cache == null) {
+            synchronized (HttpResponseCache.class) {
+                cache = instance;
+                if (cache == null) {
+                    cache = new HttpResponseCache(
+                            ProxyConfig.getLong("HTTP_CACHE_MAX_BYTES", 32L * 1024 * 1024),
+                            ProxyConfig.getInt("HTTP_CACHE_MAX_ENTRY_BYTES", 1024 * 1024));
+                    instance = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Builds the cache key from the URL and the forwarded request headers, since any of them may
+     * select a different representation.
+     */
+    static String key(Webhook webhook) {
+
+        StringBuilder key = new StringBuilder(webhook.getUrl());
+        if (webhook.getHeaders() != null) {
+            Map<String, Object> sorted = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            sorted.putAll(webhook.getHeaders());
+            for (Map.Entry<String, Object> header : sorted.entrySet()) {
+                if (header.getValue() != null) {
+                    key.append('\n').append(header.getKey().toLowerCase(Locale.ROOT))
+                            .append(':').append(header.getValue());
+                }
+            }
+        }
+        return key.toString();
+    }
+
+    boolean isEnabled() {
+        return maxBytes > 0 && maxEntryBytes > 0;
+    }
+
+    int maxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * Returns the entry for {@code key}, fresh or stale, or {@code null} when there is none or the
+     * request asks to bypass the cache.
+     */
+    synchronized Entry lookup(String key, Webhook webhook) {
+
+        if (has(requestCacheControl(webhook), "no-store")) {
+            return null;
+        }
+        return entries.get(key);
+    }
+
+    /**
+     * Returns whether a response with these headers may be stored for the given request.
+     */
+    boolean isStorable(Webhook webhook, int statusCode, HttpHeaders responseHeaders) {
+
+        if (!isEnabled() || statusCode != 200 || has(requestCacheControl(webhook), "no-store")) {
+            return false;
+        }
+        String cacheControl = lower(responseHeaders.getCacheControl());
+        if (has(cacheControl, "no-store") || has(cacheControl, "private")) {
+            return false;
+        }
+        Object vary = responseHeaders.get("vary");
+        if (vary != null && vary.toString().contains("*")) {
+            return false;
+        }
+        if (webhook.getHeaders() != null && webhook.getHeaders().getAuthorization() != null
+                && !has(cacheControl, "public") && seconds(cacheControl, "s-maxage") < 0) {
+            return false;
+        }
+        return freshnessNanos(responseHeaders) > 0
+                || responseHeaders.getETag() != null || responseHeaders.getLastModified() != null;
+    }
+
+    synchronized Entry store(String key, StoredResponse response, HttpHeaders responseHeaders) {
+
+        Entry entry = new Entry(response, responseHeaders.getETag(), responseHeaders.getLastModified(),
+                System.nanoTime() + freshnessNanos(responseHeaders),
+                has(lower(responseHeaders.getCacheControl()), "no-cache"));
+        if (response.size() > maxEntryBytes) {
+            return entry;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.response.size();
+        }
+        bytes += response.size();
+        evict();
+        return entry;
+    }
+
+    /**
+     * Refreshes a stale entry from the headers of a {@code 304 Not Modified} answer.
+     */
+    synchronized Entry revalidated(String key, Entry stale, HttpHeaders notModifiedHeaders) {
+
+        String etag = notModifiedHeaders.getETag() != null ? notModifiedHeaders.getETag() : stale.etag;
+        String lastModified = notModifiedHeaders.getLastModified() != null
+                ? notModifiedHeaders.getLastModified() : stale.lastModified;
+        Entry entry = new Entry(stale.response, etag, lastModified,
+                System.nanoTime() + freshnessNanos(notModifiedHeaders),
+                has(lower(notModifiedHeaders.getCacheControl()), "no-cache"));
+        if (entries.get(key) == stale) {
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void evict() {
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().response.size();
+            iterator.remove();
+        }
+    }
+
+    private static long freshnessNanos(HttpHeaders headers) {
+
+        String cacheControl = lower(headers.getCacheControl());
+        long lifetime = seconds(cacheControl, "s-maxage");
+        if (lifetime < 0) {
+            lifetime = seconds(cacheControl, "max-age");
+        }
+        if (lifetime < 0 && headers.getExpires() != null) {
+            long expires = epochSeconds(headers.getExpires());
+            long date = headers.getDate() != null ? epochSeconds(headers.getDate()) : -1;
+            if (date < 0) {
+                date = System.currentTimeMillis() / 1000;
+            }
+            lifetime = expires < 0 ? 0 : expires - date;
+        }
+        if (lifetime <= 0) {
+            return 0;
+        }
+        Long age = headers.getAge();
+        if (age != null) {
+            lifetime -= age;
+        }
+        return lifetime > 0 ? TimeUnit.SECONDS.toNanos(lifetime) : 0;
+    }
+
+    private static String requestCacheControl(Webhook webhook) {
+        return webhook.getHeaders() == null ? null : lower(webhook.getHeaders().getCacheControl());
+    }
+
+    private static String lower(String value) {
+        return value == null ? null : value.toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean has(String cacheControl, String directive) {
+
+        if (cacheControl == null) {
+            return false;
+        }
+        for (String token : cacheControl.split(",")) {
+            String name = token.trim();
+            int equals = name.indexOf('=');
+            if ((equals < 0 ? name : name.substring(0, equals).trim()).equals(directive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long seconds(String cacheControl, String directive) {
+
+        if (cacheControl == null) {
+            return -1;
+        }
+        for (String token : cacheControl.split(",")) {
+            String[] parts = token.trim().split("=", 2);
+            if (parts.length == 2 && parts[0].trim().equals(directive)) {
+                try {
+                    return Math.max(0, Long.parseLong(parts[1].trim().replace("\"", "")));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static long epochSeconds(String httpDate) {
+
+        try {
+            return ZonedDateTime.parse(httpDate, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    static final class Entry {
+
+        final StoredResponse response;
+        final String etag;
+        final String lastModified;
+        private final long expiresAt;
+        private final boolean noCache;
+
+        private Entry(StoredResponse response, String etag, String lastModified, long expiresAt, boolean noCache) {
+
+            this.response = response;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+            this.noCache = noCache;
+        }
+
+        boolean isFresh(Webhook webhook) {
+
+            String cacheControl = requestCacheControl(webhook);
+            return !noCache && !has(cacheControl, "no-cache") && seconds(cacheControl, "max-age") != 0
+                    && expiresAt - System.nanoTime() > 0;
+        }
+
+        boolean canRevalidate() {
+            return etag != null || lastModified != null;
+        }
+
+        /**
+         * Returns a copy of the request carrying the conditional headers for this entry.
+         */
+        Webhook conditional(Webhook webhook) {
+
+            Webhook request = webhook.copy();
+            if (request.getHeaders() == null) {
+                request.setHeaders(new HttpHeaders().setAcceptEncoding(null));
+            }
+            if (etag != null) {
+                request.getHeaders().setIfNoneMatch(etag);
+            }
+            if (lastModified != null) {
+                request.getHeaders().setIfModifiedSince(lastModified);
+            }
+            return request;
+        }
+    }
+}
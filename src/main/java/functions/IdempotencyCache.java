@@ -0,0 +1,166 @@
+package functions;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Bounded, TTL-based cache of responses by idempotency key; duplicates wait for or reuse the first call.
+ */
+final class IdempotencyCache {
+
+    private static volatile IdempotencyCache instance;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private int pending;
+
+    IdempotencyCache(int maxEntries, long maxBytes, long ttlMs) {
+
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    }
+
+    static IdempotencyCache get() {
+
+        IdempotencyCache cache = instance;
+        if (cache == null) {
+            synchronized (IdempotencyCache.class) {
+                cache = instance;
+                if (cache == null) {
+                    cache = new IdempotencyCache(
+                            ProxyConfig.getInt("IDEMPOTENCY_MAX_ENTRIES", 10_000),
+                            ProxyConfig.getLong("IDEMPOTENCY_MAX_BYTES", 64L * 1024 * 1024),
+                            ProxyConfig.getLong("IDEMPOTENCY_TTL_MS", TimeUnit.HOURS.toMillis(24)));
+                    instance = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    static int maxBodyBytes() {
+        return ProxyConfig.getInt("IDEMPOTENCY_MAX_BODY_BYTES", 256 * 1024);
+    }
+
+    static String key(Webhook webhook) {
+        return webhook.getUrl() + '\n' + webhook.getIdempotencyKey();
+    }
+
+    /**
+     * Claims {@code key}, or returns {@code null} when {@code maxEntries} calls are already in flight
+     * under distinct keys.
+     */
+    synchronized Claim claim(String key) {
+
+        long now = System.nanoTime();
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            if (!entry.completed || entry.expiresAt - now > 0) {
+                return new Claim(key, entry.future, false);
+            }
+            remove(key, entry);
+        }
+        if (pending >= maxEntries) {
+            return null;
+        }
+        entry = new Entry();
+        entries.put(key, entry);
+        pending++;
+        evict();
+        return new Claim(key, entry.future, true);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private synchronized void complete(String key, CompletableFuture<StoredResponse> future, StoredResponse response) {
+
+        Entry entry = entries.get(key);
+        if (entry == null || entry.future != future) {
+            return;
+        }
+        pending--;
+        if (response == null || !response.answered || response.statusCode >= 500) {
+            remove(key, entry);
+            return;
+        }
+        long now = System.nanoTime();
+        entry.completed = true;
+        entry.expiresAt = now + ttlNanos;
+        entry.bytes = response.size();
+        bytes += entry.bytes;
+        evict();
+    }
+
+    private void evict() {
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext() && (entries.size() > maxEntries || bytes > maxBytes)) {
+            Entry entry = iterator.next().getValue();
+            if (entry.completed) {
+                bytes -= entry.bytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+
+        entries.remove(key);
+        bytes -= entry.bytes;
+    }
+
+    private static final class Entry {
+
+        final CompletableFuture<StoredResponse> future = new CompletableFuture<>();
+        boolean completed;
+        long expiresAt;
+        int bytes;
+    }
+
+    final class Claim {
+
+        private final String key;
+        private final CompletableFuture<StoredResponse> future;
+        private final boolean leader;
+
+        private Claim(String key, CompletableFuture<StoredResponse> future, boolean leader) {
+
+            this.key = key;
+            this.future = future;
+            this.leader = leader;
+        }
+
+        boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Publishes the leader's outcome; {@code null} means the call produced none to share.
+         */
+        void complete(StoredResponse response) {
+
+            IdempotencyCache.this.complete(key, future, response);
+            future.complete(response);
+        }
+
+        StoredResponse await(long timeoutMs) throws InterruptedException {
+
+            try {
+                return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                return null;
+            }
+        }
+    }
+}
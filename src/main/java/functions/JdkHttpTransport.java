@@ -0,0 +1,206 @@
+package functions;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link HttpTransport} backed by {@code java.net.http.HttpClient}, using HTTP/2 where offered.
+ */
+final class JdkHttpTransport extends HttpTransport {
+
+    // Managed by HttpClient itself; setting them explicitly is rejected.
+    private static final Set<String> RESTRICTED_HEADERS =
+            Set.of("connection", "content-length", "expect", "host", "upgrade");
+
+    private final HttpClient client;
+    private final boolean http2Cleartext;
+
+    JdkHttpTransport(SSLContext sslContext) {
+
+        client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .sslContext(sslContext)
+                .connectTimeout(Duration.ofMillis(ProxyConfig.getLong("JDK_CONNECT_TIMEOUT_MS", 20_000)))
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .executor(DispatchExecutor.get())
+                .build();
+        http2Cleartext = ProxyConfig.getBoolean("JDK_HTTP2_CLEARTEXT", false);
+    }
+
+    @Override
+    public boolean supportsMethod(String method) {
+        return true;
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new JdkRequest(method, URI.create(url));
+    }
+
+    private final class JdkRequest extends LowLevelHttpRequest {
+
+        private final String method;
+        private final URI uri;
+        private final List<String[]> headers = new ArrayList<>();
+        private int readTimeout;
+
+        JdkRequest(String method, URI uri) {
+
+            this.method = method;
+            this.uri = uri;
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            headers.add(new String[] {name, value});
+        }
+
+        @Override
+        public void setTimeout(int connectTimeout, int readTimeout) {
+            this.readTimeout = readTimeout;
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+
+            HttpRequest.Builder builder = HttpRequest.newBuilder(uri).method(method, publisher());
+            if (!http2Cleartext && "http".equalsIgnoreCase(uri.getScheme())) {
+                builder.version(HttpClient.Version.HTTP_1_1);
+            }
+            if (readTimeout > 0) {
+                builder.timeout(Duration.ofMillis(readTimeout));
+            }
+            for (String[] header : headers) {
+                if (!RESTRICTED_HEADERS.contains(header[0].toLowerCase(Locale.ROOT))) {
+                    builder.header(header[0], header[1]);
+                }
+            }
+            if (getContentType() != null) {
+                builder.setHeader("Content-Type", getContentType());
+            }
+            if (getContentEncoding() != null) {
+                builder.setHeader("Content-Encoding", getContentEncoding());
+            }
+
+            try {
+                return new JdkResponse(client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream()));
+            } catch (HttpTimeoutException e) {
+                SocketTimeoutException timeout = new SocketTimeoutException(e.getMessage());
+                timeout.initCause(e);
+                throw timeout;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while calling " + uri);
+            }
+        }
+
+        @SuppressWarnings("deprecation") // LowLevelHttpRequest only exposes the body as StreamingContent
+        private HttpRequest.BodyPublisher publisher() throws IOException {
+
+            StreamingContent content = getStreamingContent();
+            if (content == null) {
+                return HttpRequest.BodyPublishers.noBody();
+            }
+            long length = getContentLength();
+            ByteArrayOutputStream body = new ByteArrayOutputStream(length > 0 ? (int) length : 256);
+            content.writeTo(body);
+            return HttpRequest.BodyPublishers.ofByteArray(body.toByteArray());
+        }
+    }
+
+    private static final class JdkResponse extends LowLevelHttpResponse {
+
+        private final HttpResponse<InputStream> response;
+        private final List<String> names = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+
+        JdkResponse(HttpResponse<InputStream> response) {
+
+            this.response = response;
+            for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+                if (header.getKey().startsWith(":")) {
+                    continue;
+                }
+                for (String value : header.getValue()) {
+                    names.add(header.getKey());
+                    values.add(value);
+                }
+            }
+        }
+
+        @Override
+        public InputStream getContent() {
+            return response.body();
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return response.headers().firstValue("Content-Encoding").orElse(null);
+        }
+
+        @Override
+        public long getContentLength() {
+            return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+        }
+
+        @Override
+        public String getContentType() {
+            return response.headers().firstValue("Content-Type").orElse(null);
+        }
+
+        @Override
+        public String getStatusLine() {
+            return (response.version() == HttpClient.Version.HTTP_2 ? "HTTP/2 " : "HTTP/1.1 ") + response.statusCode();
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.statusCode();
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            return null;
+        }
+
+        @Override
+        public int getHeaderCount() {
+            return names.size();
+        }
+
+        @Override
+        public String getHeaderName(int index) {
+            return names.get(index);
+        }
+
+        @Override
+        public String getHeaderValue(int index) {
+            return values.get(index);
+        }
+
+        @Override
+        public void disconnect() throws IOException {
+            response.body().close();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package functions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of memory-mapped segment files; a record position doubles as its id.
+ */
+class Journal {
+
+    static final byte PENDING = 0;
+    static final byte DONE = 1;
+
+    private static final Logger LOGGER = Logger.getLogger(Journal.class.getName());
+    private static final int HEADER_BYTES = 9;
+    private static final String SUFFIX = ".seg";
+
+    private final File directory;
+    private final int segmentBytes;
+    private final boolean fsync;
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private Segment active;
+    private int nextNumber;
+
+    Journal(File directory, int segmentBytes, boolean fsync) throws IOException {
+
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsync = fsync;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        open();
+    }
+
+    /**
+     * Size of a new segment, {@code JOURNAL_SEGMENT_BYTES}. Segments are mapped whole and the default
+     * temp directory of a function is memory-backed, so the default is kept small; a record larger
+     * than a segment gets a segment of its own.
+     */
+    static int segmentBytes() {
+        return ProxyConfig.getInt("JOURNAL_SEGMENT_BYTES", 1024 * 1024);
+    }
+
+    /**
+     * Whether {@code directory} holds segments left by an earlier run.
+     */
+    static boolean hasSegments(File directory) {
+
+        String[] names = directory.list((dir, name) -> name.endsWith(SUFFIX));
+        return names != null && names.length > 0;
+    }
+
+    synchronized long append(byte[] payload) throws IOException {
+
+        int recordBytes = HEADER_BYTES + payload.length;
+        if (active == null || active.buffer.remaining() < recordBytes) {
+            roll(recordBytes);
+        }
+        MappedByteBuffer buffer = active.buffer;
+        int offset = buffer.position();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        buffer.put(offset + 8, PENDING);
+        buffer.put(offset + HEADER_BYTES, payload);
+        buffer.putInt(offset, payload.length);
+        buffer.position(offset + recordBytes);
+        if (fsync) {
+            buffer.force(offset, recordBytes);
+        }
+        active.pending++;
+        return position(active.number, offset);
+    }
+
+    byte[] read(long position) throws IOException {
+
+        Segment segment = segments.get(segmentNumber(position));
+        if (segment == null) {
+            throw new IOException("Unknown journal position " + position);
+        }
+        int offset = offset(position);
+        byte[] payload = new byte[segment.buffer.getInt(offset)];
+        segment.buffer.get(offset + HEADER_BYTES, payload);
+        return payload;
+    }
+
+    /**
+     * Reads the first eight payload bytes of a record without copying the rest.
+     */
+    long readLong(long position) throws IOException {
+
+        Segment segment = segments.get(segmentNumber(position));
+        if (segment == null) {
+            throw new IOException("Unknown journal position " + position);
+        }
+        int offset = offset(position);
+        if (segment.buffer.getInt(offset) < Long.BYTES) {
+            throw new IOException("Short journal record at " + position);
+        }
+        return segment.buffer.getLong(offset + HEADER_BYTES);
+    }
+
+    /**
+     * Whether {@code position} is the start of a record that is still pending. Positions from outside
+     * the process are checked against the record's length and checksum before they are trusted.
+     */
+    synchronized boolean isPending(long position) {
+
+        Segment segment = segments.get(segmentNumber(position));
+        int offset = offset(position);
+        return segment != null && offset >= 0 && recordLength(segment.buffer, offset) > 0
+                && segment.buffer.get(offset + 8) == PENDING;
+    }
+
+    synchronized void markDone(long position) throws IOException {
+
+        Segment segment = segments.get(segmentNumber(position));
+        if (segment == null) {
+            return;
+        }
+        int offset = offset(position);
+        if (segment.buffer.get(offset + 8) == DONE) {
+            return;
+        }
+        segment.buffer.put(offset + 8, DONE);
+        if (fsync) {
+            segment.buffer.force(offset + 8, 1);
+        }
+        segment.pending--;
+        if (segment.pending == 0 && segment != active) {
+            delete(segment);
+        }
+    }
+
+    /**
+     * Returns the positions of all pending records, oldest first.
+     */
+    synchronized List<Long> pending() {
+
+        List<Long> positions = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            scan(segment, positions);
+        }
+        return positions;
+    }
+
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    private void open() throws IOException {
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            int number;
+            try {
+                number = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Skipping unexpected file " + file + " in journal directory");
+                continue;
+            }
+            Segment segment = map(number, file, (int) file.length());
+            segment.pending = scan(segment, null);
+            segments.put(number, segment);
+            nextNumber = Math.max(nextNumber, number + 1);
+        }
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment.pending == 0) {
+                delete(segment);
+            }
+        }
+        if (!segments.isEmpty()) {
+            active = segments.lastEntry().getValue();
+        }
+    }
+
+    private int scan(Segment segment, List<Long> positions) {
+
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        int pending = 0;
+        int length;
+        while ((length = recordLength(buffer, offset)) > 0) {
+            if (buffer.get(offset + 8) == PENDING) {
+                pending++;
+                if (positions != null) {
+                    positions.add(position(segment.number, offset));
+                }
+            }
+            offset += HEADER_BYTES + length;
+        }
+        buffer.position(offset);
+        return pending;
+    }
+
+    /**
+     * Returns the payload length of the complete record at {@code offset}, or -1 if there is none.
+     */
+    private static int recordLength(MappedByteBuffer buffer, int offset) {
+
+        if (offset + HEADER_BYTES > buffer.capacity()) {
+            return -1;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || length > buffer.capacity() - offset - HEADER_BYTES) {
+            return -1;
+        }
+        byte[] payload = new byte[length];
+        buffer.get(offset + HEADER_BYTES, payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue() == buffer.getInt(offset + 4) ? length : -1;
+    }
+
+    private void roll(int recordBytes) throws IOException {
+
+        Segment previous = active;
+        int number = nextNumber++;
+        File file = new File(directory, String.format("%010d%s", number, SUFFIX));
+        active = map(number, file, Math.max(segmentBytes, recordBytes));
+        segments.put(number, active);
+        if (previous != null && previous.pending == 0) {
+            delete(previous);
+        }
+    }
+
+    private void delete(Segment segment) {
+
+        segments.remove(segment.number);
+        if (segment == active) {
+            active = null;
+        }
+        segment.file.delete();
+    }
+
+    private static Segment map(int number, File file, int size) throws IOException {
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            return new Segment(number, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    static long position(int segmentNumber, int offset) {
+        return ((long) segmentNumber << 32) | (offset & 0xffffffffL);
+    }
+
+    static int segmentNumber(long position) {
+        return (int) (position >>> 32);
+    }
+
+    static int offset(long position) {
+        return (int) position;
+    }
+
+    private static final class Segment {
+
+        final int number;
+        final File file;
+        final MappedByteBuffer buffer;
+        int pending;
+
+        Segment(int number, File file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
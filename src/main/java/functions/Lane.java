@@ -0,0 +1,251 @@
+package functions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Queue of one {@link Priority} class; lanes share the slots of their {@link Group} by weight.
+ */
+final class Lane {
+
+    static final String DEFAULT_TENANT = "default";
+    private static final long CALL_OVERHEAD_BYTES = 1024;
+    private static final Map<Priority, Lane> LANES = new EnumMap<>(Priority.class);
+
+    static {
+        Group group = new Group(ProxyConfig.getInt("LANE_MAX_CONCURRENT", 512));
+        int[] weights = {8, 4, 1};
+        for (Priority priority : Priority.values()) {
+            String name = priority.name();
+            LANES.put(priority, new Lane(group, name.toLowerCase(Locale.ROOT),
+                    ProxyConfig.getInt("LANE_WEIGHT_" + name, weights[priority.ordinal()]),
+                    ProxyConfig.getInt("LANE_MAX_QUEUED", 10_000),
+                    ProxyConfig.getLong("LANE_QUANTUM_BYTES", 64 * 1024)));
+        }
+    }
+
+    private final Group group;
+    private final String name;
+    private final int weight;
+    private final int maxQueued;
+    private final long quantum;
+    private final Map<String, TenantQueue> tenants = new HashMap<>();
+    private final ArrayDeque<TenantQueue> active = new ArrayDeque<>();
+    private int inFlight;
+    private int queued;
+    // smooth weighted round-robin state, guarded by the group
+    private long current;
+
+    Lane(Group group, String name, int weight, int maxQueued, long quantum) {
+
+        this.group = group;
+        this.name = name;
+        this.weight = Math.max(1, weight);
+        this.maxQueued = maxQueued;
+        this.quantum = Math.max(1, quantum);
+        synchronized (group) {
+            group.lanes.add(this);
+        }
+    }
+
+    static Lane of(Priority priority) {
+        return LANES.get(priority == null ? Priority.NORMAL : priority);
+    }
+
+    static Iterable<Lane> all() {
+        return LANES.values();
+    }
+
+    static long cost(Webhook webhook) {
+        return CALL_OVERHEAD_BYTES + (webhook.getBody() == null ? 0 : webhook.getBody().length);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Runs {@code call} now or queues it behind the calls of {@code tenant}. Returns {@code false}
+     * without running it when the lane's queue is full.
+     */
+    boolean submit(String tenant, long cost, Runnable call) {
+
+        Runnable task = () -> {
+            try {
+                call.run();
+            } finally {
+                release();
+            }
+        };
+        synchronized (group) {
+            if (group.inFlight >= group.maxConcurrent || group.queued > 0) {
+                if (queued >= maxQueued) {
+                    return false;
+                }
+                enqueue(tenant == null ? DEFAULT_TENANT : tenant, cost, task);
+                return true;
+            }
+            group.inFlight++;
+            inFlight++;
+        }
+        task.run();
+        return true;
+    }
+
+    int inFlight() {
+
+        synchronized (group) {
+            return inFlight;
+        }
+    }
+
+    int queued() {
+
+        synchronized (group) {
+            return queued;
+        }
+    }
+
+    private void release() {
+
+        Runnable next;
+        synchronized (group) {
+            inFlight--;
+            group.inFlight--;
+            next = group.poll();
+        }
+        if (next != null) {
+            DispatchExecutor.get().execute(next);
+        }
+    }
+
+    private void enqueue(String tenant, long cost, Runnable task) {
+
+        TenantQueue queue = tenants.get(tenant);
+        if (queue == null) {
+            queue = new TenantQueue(tenant, quantum * weight(tenant));
+            tenants.put(tenant, queue);
+            active.addLast(queue);
+        }
+        queue.calls.addLast(new QueuedCall(cost, task));
+        queued++;
+        group.queued++;
+    }
+
+    private Runnable poll() {
+
+        while (true) {
+            TenantQueue queue = active.peekFirst();
+            if (!queue.credited) {
+                queue.deficit += queue.quantum;
+                queue.credited = true;
+            }
+            QueuedCall head = queue.calls.peekFirst();
+            if (queue.deficit >= head.cost) {
+                queue.deficit -= head.cost;
+                queue.calls.pollFirst();
+                queued--;
+                group.queued--;
+                if (queue.calls.isEmpty()) {
+                    active.pollFirst();
+                    tenants.remove(queue.tenant);
+                }
+                if (queued == 0) {
+                    current = 0;
+                }
+                return head.task;
+            }
+            queue.credited = false;
+            active.addLast(active.pollFirst());
+        }
+    }
+
+    private static long weight(String tenant) {
+
+        String weights = ProxyConfig.getString("TENANT_WEIGHTS", null);
+        if (weights != null) {
+            for (String entry : weights.split(",")) {
+                int equals = entry.indexOf('=');
+                if (equals > 0 && entry.substring(0, equals).trim().equals(tenant)) {
+                    try {
+                        return Math.max(1, Long.parseLong(entry.substring(equals + 1).trim()));
+                    } catch (NumberFormatException e) {
+                        return 1;
+                    }
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Outbound slots shared by a set of lanes.
+     */
+    static final class Group {
+
+        private final int maxConcurrent;
+        private final List<Lane> lanes = new ArrayList<>();
+        private int inFlight;
+        private int queued;
+
+        Group(int maxConcurrent) {
+            this.maxConcurrent = Math.max(1, maxConcurrent);
+        }
+
+        /**
+         * Takes the next call for a freed slot from the lane picked by smooth weighted round-robin,
+         * or returns {@code null} when nothing is queued.
+         */
+        private Runnable poll() {
+
+            Lane picked = null;
+            long total = 0;
+            for (Lane lane : lanes) {
+                if (lane.queued > 0) {
+                    lane.current += lane.weight;
+                    total += lane.weight;
+                    if (picked == null || lane.current > picked.current) {
+                        picked = lane;
+                    }
+                }
+            }
+            if (picked == null) {
+                return null;
+            }
+            picked.current -= total;
+            inFlight++;
+            picked.inFlight++;
+            return picked.poll();
+        }
+    }
+
+    private static final class TenantQueue {
+
+        final String tenant;
+        final long quantum;
+        final ArrayDeque<QueuedCall> calls = new ArrayDeque<>();
+        long deficit;
+        boolean credited;
+
+        TenantQueue(String tenant, long quantum) {
+            this.tenant = tenant;
+            this.quantum = quantum;
+        }
+    }
+
+    private static final class QueuedCall {
+
+        final long cost;
+        final Runnable task;
+
+        QueuedCall(long cost, Runnable task) {
+            this.cost = cost;
+            this.task = task;
+        }
+    }
+}
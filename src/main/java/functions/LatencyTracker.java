@@ -0,0 +1,63 @@
+package functions;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencies of the most recent calls to one host, for percentiles.
+ */
+final class LatencyTracker {
+
+    private final long[] samples;
+    private final int minSamples;
+    private final int resortEvery;
+    private int next;
+    private int count;
+    private long[] sorted = new long[0];
+    private int unsorted;
+
+    LatencyTracker(int window, int minSamples) {
+
+        this.samples = new long[Math.max(1, window)];
+        this.minSamples = Math.max(1, Math.min(minSamples, samples.length));
+        this.resortEvery = Math.max(1, samples.length / 16);
+    }
+
+    synchronized void record(long nanos) {
+
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+        unsorted++;
+    }
+
+    /**
+     * Returns the {@code quantile} of the recent latencies in milliseconds, rounded up, or -1 while
+     * there are too few samples.
+     */
+    long percentileMillis(double quantile) {
+
+        long[] snapshot = snapshot();
+        if (snapshot == null) {
+            return -1;
+        }
+        int index = (int) Math.min(snapshot.length - 1, Math.ceil(quantile * snapshot.length) - 1);
+        long nanos = snapshot[Math.max(0, index)];
+        return TimeUnit.NANOSECONDS.toMillis(nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+    }
+
+    private synchronized long[] snapshot() {
+
+        if (count < minSamples) {
+            return null;
+        }
+        // until the ring is full every new sample changes the snapshot's length, so sort on each one
+        if (sorted.length != count || unsorted >= resortEvery) {
+            long[] copy = Arrays.copyOf(samples, count);
+            Arrays.sort(copy);
+            sorted = copy;
+            unsorted = 0;
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,55 @@
+package functions;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+
+/**
+ * TLS socket factory that builds the shared SSLContext on the first HTTPS connection.
+ */
+final class LazySslSocketFactory implements LayeredConnectionSocketFactory {
+
+    private volatile SSLConnectionSocketFactory delegate;
+
+    @Override
+    public Socket createSocket(HttpContext context) throws IOException {
+        return delegate().createSocket(context);
+    }
+
+    @Override
+    public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                InetSocketAddress localAddress, HttpContext context) throws IOException {
+        return delegate().connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+    }
+
+    @Override
+    public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+            throws IOException {
+        return delegate().createLayeredSocket(socket, target, port, context);
+    }
+
+    private SSLConnectionSocketFactory delegate() throws IOException {
+
+        SSLConnectionSocketFactory factory = delegate;
+        if (factory == null) {
+            synchronized (this) {
+                factory = delegate;
+                if (factory == null) {
+                    try {
+                        factory = new SSLConnectionSocketFactory(TransportRegistry.sslContext());
+                    } catch (GeneralSecurityException e) {
+                        throw new IOException("Cannot initialize TLS: " + e.getMessage(), e);
+                    }
+                    delegate = factory;
+                }
+            }
+        }
+        return factory;
+    }
+}
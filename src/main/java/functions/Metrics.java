@@ -0,0 +1,213 @@
+package functions;
+
+import com.google.api.client.http.HttpResponseException;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide stage latency and outcome metrics in the Prometheus text format.
+ */
+final class Metrics {
+
+    enum Stage {
+        PARSE, VALIDATE, BUILD, CONNECT, TTFB, RELAY, TOTAL
+    }
+
+    private static final long MAX_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String OTHER_HOSTS = "other";
+
+    private static final StageTimer[] TIMERS = new StageTimer[Stage.values().length];
+    private static final ConcurrentHashMap<String, LongAdder> OUTCOMES = new ConcurrentHashMap<>();
+    private static final Set<String> HOSTS = ConcurrentHashMap.newKeySet();
+    private static final int MAX_HOSTS = ProxyConfig.getInt("METRICS_MAX_HOSTS", 1000);
+    private static final LongAdder REJECTED = new LongAdder();
+    private static final LongAdder HEDGES = new LongAdder();
+    private static final LongAdder FAILOVERS = new LongAdder();
+
+    static {
+        for (Stage stage : Stage.values()) {
+            TIMERS[stage.ordinal()] = new StageTimer();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    static void record(Stage stage, long startNanos) {
+        TIMERS[stage.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    static void recordOutcome(String host, UrlResponse response) {
+
+        if (!HOSTS.contains(host)) {
+            if (HOSTS.size() >= MAX_HOSTS) {
+                host = OTHER_HOSTS;
+            } else {
+                HOSTS.add(host);
+            }
+        }
+        OUTCOMES.computeIfAbsent(host + ' ' + outcome(response), key -> new LongAdder()).increment();
+    }
+
+    static void recordRejected() {
+        REJECTED.increment();
+    }
+
+    static void recordHedge() {
+        HEDGES.increment();
+    }
+
+    static void recordFailover() {
+        FAILOVERS.increment();
+    }
+
+    /**
+     * Classifies a call by the exception recorded on {@link UrlResponse}.
+     */
+    static String outcome(UrlResponse response) {
+
+        Exception exception = response.exception;
+        if (exception == null) {
+            return "success";
+        }
+        if (exception instanceof HttpResponseException) {
+            return "http_" + response.getStatusCode() / 100 + "xx";
+        }
+        if (exception instanceof RateLimitedException) {
+            return "rate_limited";
+        }
+        if (exception instanceof DestinationRejectedException) {
+            switch (((DestinationRejectedException) exception).getReason()) {
+                case "bulkhead":
+                    return "bulkhead_rejected";
+                case "lane":
+                    return "lane_rejected";
+                default:
+                    return "circuit_open";
+            }
+        }
+        if (exception instanceof UnknownHostException) {
+            return "dns";
+        }
+        if (exception instanceof SocketTimeoutException || exception instanceof InterruptedIOException) {
+            return "timeout";
+        }
+        if (exception instanceof SSLException) {
+            return "tls";
+        }
+        if (exception instanceof ConnectException) {
+            return "connect";
+        }
+        if (exception instanceof SocketException || exception instanceof IOException) {
+            return "io";
+        }
+        return "other";
+    }
+
+    static synchronized void write(Writer writer) throws IOException {
+
+        StringBuilder out = new StringBuilder(4096);
+        out.append("# HELP webhook_stage_seconds Latency of each proxy stage.\n");
+        out.append("# TYPE webhook_stage_seconds summary\n");
+        for (Stage stage : Stage.values()) {
+            TIMERS[stage.ordinal()].write(stage.name().toLowerCase(Locale.ROOT), out);
+        }
+
+        out.append("# HELP webhook_upstream_calls_total Upstream call attempts by destination host and outcome.\n");
+        out.append("# TYPE webhook_upstream_calls_total counter\n");
+        Map<String, LongAdder> sorted = new TreeMap<>(OUTCOMES);
+        for (Map.Entry<String, LongAdder> entry : sorted.entrySet()) {
+            int space = entry.getKey().lastIndexOf(' ');
+            out.append("webhook_upstream_calls_total{host=\"").append(escape(entry.getKey().substring(0, space)))
+                    .append("\",outcome=\"").append(entry.getKey().substring(space + 1)).append("\"} ")
+                    .append(entry.getValue().sum()).append('\n');
+        }
+        out.append("# HELP webhook_requests_rejected_total Requests turned away because the instance was saturated.\n");
+        out.append("# TYPE webhook_requests_rejected_total counter\n");
+        out.append("webhook_requests_rejected_total ").append(REJECTED.sum()).append('\n');
+        out.append("# HELP webhook_hedged_calls_total Second attempts fired because the first was slower than p95.\n");
+        out.append("# TYPE webhook_hedged_calls_total counter\n");
+        out.append("webhook_hedged_calls_total ").append(HEDGES.sum()).append('\n');
+        out.append("# HELP webhook_failovers_total Calls sent to a fallback url after the previous one failed.\n");
+        out.append("# TYPE webhook_failovers_total counter\n");
+        out.append("webhook_failovers_total ").append(FAILOVERS.sum()).append('\n');
+
+        out.append("# HELP webhook_lane_queue_depth Calls waiting for a slot in each priority lane.\n");
+        out.append("# TYPE webhook_lane_queue_depth gauge\n");
+        for (Lane lane : Lane.all()) {
+            out.append("webhook_lane_queue_depth{lane=\"").append(lane.getName()).append("\"} ")
+                    .append(lane.queued()).append('\n');
+        }
+        out.append("# HELP webhook_lane_in_flight Calls holding a slot in each priority lane.\n");
+        out.append("# TYPE webhook_lane_in_flight gauge\n");
+        for (Lane lane : Lane.all()) {
+            out.append("webhook_lane_in_flight{lane=\"").append(lane.getName()).append("\"} ")
+                    .append(lane.inFlight()).append('\n');
+        }
+
+        DnsCache dns = DnsCache.current();
+        if (dns != null) {
+            out.append("# HELP webhook_dns_cache_lookups_total Host lookups answered from the DNS cache or resolved.\n");
+            out.append("# TYPE webhook_dns_cache_lookups_total counter\n");
+            out.append("webhook_dns_cache_lookups_total{result=\"hit\"} ").append(dns.hits()).append('\n');
+            out.append("webhook_dns_cache_lookups_total{result=\"miss\"} ").append(dns.misses()).append('\n');
+            out.append("# HELP webhook_dns_cache_refreshes_total Cached host lookups refreshed ahead of expiry.\n");
+            out.append("# TYPE webhook_dns_cache_refreshes_total counter\n");
+            out.append("webhook_dns_cache_refreshes_total ").append(dns.refreshes()).append('\n');
+        }
+        writer.write(out.toString());
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class StageTimer {
+
+        private final Recorder recorder = new Recorder(MAX_TRACKABLE_MICROS, 2);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+        private Histogram interval;
+
+        void record(long nanos) {
+
+            long micros = Math.min(Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0), MAX_TRACKABLE_MICROS);
+            recorder.recordValue(micros);
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        void write(String stage, StringBuilder out) {
+
+            interval = recorder.getIntervalHistogram(interval);
+            for (double quantile : QUANTILES) {
+                double seconds = interval.getTotalCount() == 0
+                        ? Double.NaN : interval.getValueAtPercentile(quantile * 100) / 1e6;
+                out.append("webhook_stage_seconds{stage=\"").append(stage).append("\",quantile=\"")
+                        .append(quantile).append("\"} ").append(Double.isNaN(seconds) ? "NaN" : seconds)
+                        .append('\n');
+            }
+            out.append("webhook_stage_seconds_sum{stage=\"").append(stage).append("\"} ")
+                    .append(sumNanos.sum() / 1e9).append('\n');
+            out.append("webhook_stage_seconds_count{stage=\"").append(stage).append("\"} ")
+                    .append(count.sum()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package functions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opens connections to the {@code HOT_DESTINATIONS} when an instance starts.
+ */
+final class Prewarmer {
+
+    private static final Logger LOGGER = Logger.getLogger(Prewarmer.class.getName());
+
+    private Prewarmer() {
+    }
+
+    static void start() {
+
+        String destinations = ProxyConfig.getString("HOT_DESTINATIONS", null);
+        if (destinations == null) {
+            return;
+        }
+        int connections = ProxyConfig.getInt("PREWARM_CONNECTIONS", 2);
+        int timeoutMs = ProxyConfig.getInt("PREWARM_TIMEOUT_MS", 5_000);
+        List<CompletableFuture<Void>> warming = new ArrayList<>();
+        for (String destination : destinations.split(",")) {
+            String url = destination.trim();
+            if (!url.isEmpty()) {
+                warming.add(CompletableFuture.runAsync(
+                        () -> warm(url, connections, timeoutMs), DispatchExecutor.get()));
+            }
+        }
+        try {
+            CompletableFuture.allOf(warming.toArray(new CompletableFuture<?>[0]))
+                    .get(ProxyConfig.getLong("PREWARM_WAIT_MS", 2_000), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // still warming, or already logged by warm()
+        }
+    }
+
+    private static void warm(String url, int connections, int timeoutMs) {
+
+        long start = System.nanoTime();
+        try {
+            int idle = TransportRegistry.prewarm(url, connections, timeoutMs);
+            LOGGER.log(Level.INFO, "Pre-warmed {0} connection(s) to {1} in {2} ms",
+                    new Object[] {idle, url, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Could not pre-warm " + url, e);
+        }
+    }
+}
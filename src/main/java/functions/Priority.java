@@ -0,0 +1,22 @@
+package functions;
+
+import java.util.Locale;
+
+/**
+ * Priority class of a delivery, set with {@code options.priority}.
+ */
+public enum Priority {
+
+    HIGH,
+    NORMAL,
+    LOW;
+
+    static Priority parse(String value) {
+
+        try {
+            return value == null ? null : valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
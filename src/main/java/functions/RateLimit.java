@@ -0,0 +1,87 @@
+package functions;
+
+import java.util.Locale;
+
+public class RateLimit {
+
+    private double perSecond;
+    private int burst = 1;
+
+    public RateLimit() {
+    }
+
+    public RateLimit(double perSecond, int burst) {
+        this.perSecond = perSecond;
+        this.burst = burst;
+    }
+
+    public double getPerSecond() {
+        return perSecond;
+    }
+
+    public void setPerSecond(double perSecond) {
+        this.perSecond = perSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+
+    /**
+     * Returns the limit configured for {@code host}: the matching entry of {@code RATE_LIMITS}
+     * (comma-separated {@code host[:port]=perSecond[/burst]}), else {@code RATE_LIMIT_PER_SECOND}
+     * with {@code RATE_LIMIT_BURST}, or {@code null} when the host is not limited.
+     */
+    static RateLimit configured(String host) {
+
+        String limits = ProxyConfig.getString("RATE_LIMITS", null);
+        if (limits != null) {
+            for (String entry : limits.split(",")) {
+                int equals = entry.indexOf('=');
+                if (equals > 0 && entry.substring(0, equals).trim().toLowerCase(Locale.ROOT).equals(host)) {
+                    return parse(entry.substring(equals + 1).trim());
+                }
+            }
+        }
+        String perSecond = ProxyConfig.getString("RATE_LIMIT_PER_SECOND", null);
+        if (perSecond == null) {
+            return null;
+        }
+        RateLimit limit = parse(perSecond);
+        if (limit != null) {
+            limit.setBurst(Math.max(1, ProxyConfig.getInt("RATE_LIMIT_BURST", limit.getBurst())));
+        }
+        return limit;
+    }
+
+    private static RateLimit parse(String value) {
+
+        String[] parts = value.split("/", 2);
+        try {
+            double perSecond = Double.parseDouble(parts[0].trim());
+            int burst = parts.length == 2 ? Integer.parseInt(parts[1].trim()) : 1;
+            return perSecond > 0 && burst >= 1 ? new RateLimit(perSecond, burst) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+
+        if (!(other instanceof RateLimit)) {
+            return false;
+        }
+        RateLimit limit = (RateLimit) other;
+        return Double.compare(perSecond, limit.perSecond) == 0 && burst == limit.burst;
+    }
+
+    @Override
+    public int hashCode() {
+        return Double.hashCode(perSecond) * 31 + burst;
+    }
+}
@@ -0,0 +1,9 @@
+package functions;
+
+public class RateLimitedException extends DestinationRejectedException {
+
+    public RateLimitedException(String message) {
+        super(429, "rate-limit", message);
+    }
+
+}
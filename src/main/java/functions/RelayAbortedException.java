@@ -0,0 +1,15 @@
+package functions;
+
+import java.io.IOException;
+
+public class RelayAbortedException extends IOException {
+
+    public RelayAbortedException(String message) {
+        super(message);
+    }
+
+    public RelayAbortedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
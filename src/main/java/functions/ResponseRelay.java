@@ -0,0 +1,117 @@
+package functions;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.cloud.functions.HttpResponse;
+import org.apache.http.conn.EofSensorInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies an upstream response to the caller byte-for-byte.
+ */
+final class ResponseRelay {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private ResponseRelay() {
+    }
+
+    static long maxBytes() {
+        return ProxyConfig.getLong("RELAY_MAX_BYTES", 0);
+    }
+
+    static void relay(com.google.api.client.http.HttpResponse upstream, HttpResponse downstream, long maxBytes)
+            throws IOException {
+        relay(upstream, upstream.getContent(), downstream, maxBytes);
+    }
+
+    static void relay(com.google.api.client.http.HttpResponse upstream, InputStream content,
+                      HttpResponse downstream, long maxBytes) throws IOException {
+
+        long start = System.nanoTime();
+        try {
+            copy(upstream, content, downstream, maxBytes);
+        } finally {
+            Metrics.record(Metrics.Stage.RELAY, start);
+        }
+    }
+
+    private static void copy(com.google.api.client.http.HttpResponse upstream, InputStream content,
+                             HttpResponse downstream, long maxBytes) throws IOException {
+
+        if (content == null) {
+            commit(upstream, downstream);
+            downstream.getOutputStream().close();
+            return;
+        }
+
+        boolean completed = false;
+        try {
+            Long contentLength = upstream.getHeaders().getContentLength();
+            if (maxBytes > 0 && contentLength != null && contentLength > maxBytes) {
+                throw new IOException("Response exceeds " + maxBytes + " bytes");
+            }
+
+            byte[] buffer = BUFFERS.get();
+            int read = content.read(buffer);
+            if (maxBytes > 0 && read > maxBytes) {
+                throw new IOException("Response exceeds " + maxBytes + " bytes");
+            }
+            commit(upstream, downstream);
+
+            OutputStream outputStream = downstream.getOutputStream();
+            long total = Math.max(read, 0);
+            try {
+                while (read != -1) {
+                    outputStream.write(buffer, 0, read);
+                    read = content.read(buffer);
+                    total += Math.max(read, 0);
+                    if (maxBytes > 0 && total > maxBytes) {
+                        throw new RelayAbortedException("Response exceeds " + maxBytes + " bytes");
+                    }
+                }
+                outputStream.flush();
+                outputStream.close();
+            } catch (RelayAbortedException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new RelayAbortedException(e.getMessage(), e);
+            }
+            completed = true;
+        } finally {
+            if (completed) {
+                content.close();
+            } else {
+                abort(content);
+            }
+        }
+    }
+
+    private static void commit(com.google.api.client.http.HttpResponse upstream, HttpResponse downstream) {
+
+        HttpHeaders headers = upstream.getHeaders();
+        downstream.setStatusCode(upstream.getStatusCode());
+        if (upstream.getContentType() != null) {
+            downstream.setContentType(upstream.getContentType());
+        }
+        if (headers.getContentLength() != null) {
+            downstream.appendHeader("Content-Length", String.valueOf(headers.getContentLength()));
+        }
+        if (upstream.getContentEncoding() != null) {
+            downstream.appendHeader("Content-Encoding", upstream.getContentEncoding());
+        }
+    }
+
+    static void abort(InputStream content) throws IOException {
+
+        // Closing a pooled stream drains the rest of the body; abort drops the connection instead.
+        if (content instanceof EofSensorInputStream) {
+            ((EofSensorInputStream) content).abortConnection();
+        } else {
+            content.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package functions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits retries to a share of the regular traffic to a destination.
+ */
+final class RetryBudget {
+
+    private final long depositMilli;
+    private final long minPerSecondMilli;
+    private final long maxMilli;
+    private final AtomicLong balance;
+    private final AtomicLong lastAllowance = new AtomicLong(System.nanoTime());
+
+    RetryBudget(int percent, int minPerSecond, int maxTokens) {
+
+        this.depositMilli = percent * 10L;
+        this.minPerSecondMilli = minPerSecond * 1000L;
+        this.maxMilli = Math.max(maxTokens, minPerSecond) * 1000L;
+        this.balance = new AtomicLong(minPerSecondMilli);
+    }
+
+    static RetryBudget fromConfig() {
+
+        return new RetryBudget(
+                ProxyConfig.getInt("RETRY_BUDGET_PERCENT", 10),
+                ProxyConfig.getInt("RETRY_BUDGET_MIN_PER_SECOND", 1),
+                ProxyConfig.getInt("RETRY_BUDGET_MAX_TOKENS", 100));
+    }
+
+    void deposit() {
+        add(depositMilli);
+    }
+
+    boolean tryWithdraw() {
+
+        grantAllowance();
+        while (true) {
+            long current = balance.get();
+            if (current < 1000) {
+                return false;
+            }
+            if (balance.compareAndSet(current, current - 1000)) {
+                return true;
+            }
+        }
+    }
+
+    private void grantAllowance() {
+
+        long now = System.nanoTime();
+        long last = lastAllowance.get();
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(now - last);
+        if (seconds > 0 && lastAllowance.compareAndSet(last, last + TimeUnit.SECONDS.toNanos(seconds))) {
+            add(seconds * minPerSecondMilli);
+        }
+    }
+
+    private void add(long milliTokens) {
+        balance.accumulateAndGet(milliTokens, (current, delta) -> Math.min(maxMilli, current + delta));
+    }
+}
@@ -0,0 +1,100 @@
+package functions;
+
+import com.google.api.client.http.HttpResponseException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class RetryPolicy {
+
+    static final Set<Integer> DEFAULT_STATUS_CODES = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList(429, 502, 503, 504)));
+    static final Set<String> DEFAULT_EXCEPTIONS = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList("SocketException", "SocketTimeoutException", "SSLException",
+                    "UnknownHostException", "NoHttpResponseException")));
+
+    private int maxAttempts = 1;
+    private long initialBackoffMs = 100;
+    private long maxBackoffMs = 10_000;
+    private double multiplier = 2.0;
+    private Set<Integer> statusCodes = DEFAULT_STATUS_CODES;
+    private Set<String> exceptions = DEFAULT_EXCEPTIONS;
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getInitialBackoffMs() {
+        return initialBackoffMs;
+    }
+
+    public void setInitialBackoffMs(long initialBackoffMs) {
+        this.initialBackoffMs = initialBackoffMs;
+    }
+
+    public long getMaxBackoffMs() {
+        return maxBackoffMs;
+    }
+
+    public void setMaxBackoffMs(long maxBackoffMs) {
+        this.maxBackoffMs = maxBackoffMs;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public void setMultiplier(double multiplier) {
+        this.multiplier = multiplier;
+    }
+
+    public Set<Integer> getStatusCodes() {
+        return statusCodes;
+    }
+
+    public void setStatusCodes(Set<Integer> statusCodes) {
+        this.statusCodes = statusCodes;
+    }
+
+    public Set<String> getExceptions() {
+        return exceptions;
+    }
+
+    public void setExceptions(Set<String> exceptions) {
+        this.exceptions = exceptions;
+    }
+
+    boolean shouldRetry(UrlResponse response) {
+
+        Exception exception = response.exception;
+        if (exception == null) {
+            return false;
+        }
+        if (exception instanceof HttpResponseException) {
+            return statusCodes.contains(((HttpResponseException) exception).getStatusCode());
+        }
+        for (Class<?> type = exception.getClass(); type != null; type = type.getSuperclass()) {
+            if (exceptions.contains(type.getSimpleName()) || exceptions.contains(type.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Exponential backoff with full jitter: a random delay between zero and the capped exponential
+     * delay for the given attempt (1-based).
+     */
+    long backoffMillis(int attempt) {
+
+        double ceiling = Math.min(maxBackoffMs, initialBackoffMs * Math.pow(multiplier, attempt - 1));
+        return (long) (ThreadLocalRandom.current().nextDouble() * ceiling);
+    }
+}
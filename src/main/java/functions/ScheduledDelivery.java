@@ -0,0 +1,172 @@
+package functions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds journaled webhooks on a {@link TimingWheel} until their {@code deliverAt} time.
+ */
+class ScheduledDelivery {
+
+    private static final Logger LOGGER = Logger.getLogger(ScheduledDelivery.class.getName());
+    private static final long HANDOFF_RETRY_MS = 1000;
+
+    private static volatile ScheduledDelivery instance;
+
+    private final Journal journal;
+    private final AsyncDelivery delivery;
+    private final long tickMillis;
+    private final TimingWheel wheel;
+
+    ScheduledDelivery(Journal journal, AsyncDelivery delivery, long tickMillis, int wheelSize) {
+
+        this.journal = journal;
+        this.delivery = delivery;
+        this.tickMillis = Math.max(1, tickMillis);
+        List<Long> pending = journal.pending();
+        this.wheel = new TimingWheel(System.currentTimeMillis(), this.tickMillis, wheelSize, pending.size());
+        for (long id : pending) {
+            try {
+                wheel.schedule(id, journal.readLong(id));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot read scheduled delivery " + id, e);
+            }
+        }
+        DispatchExecutor.daemonThreads("webhook-schedule").newThread(this::run).start();
+    }
+
+    static ScheduledDelivery get() throws IOException {
+
+        ScheduledDelivery scheduled = instance;
+        if (scheduled == null) {
+            synchronized (ScheduledDelivery.class) {
+                scheduled = instance;
+                if (scheduled == null) {
+                    Journal journal = new Journal(directory(),
+                            Journal.segmentBytes(),
+                            ProxyConfig.getBoolean("JOURNAL_FSYNC", false));
+                    scheduled = new ScheduledDelivery(journal, AsyncDelivery.get(),
+                            ProxyConfig.getLong("SCHEDULE_TICK_MS", 100),
+                            ProxyConfig.getInt("SCHEDULE_WHEEL_SIZE", 4096));
+                    instance = scheduled;
+                }
+            }
+        }
+        return scheduled;
+    }
+
+    /**
+     * Opens the schedule in the background when an earlier run left deliveries in it, so they fire
+     * on time after a restart without waiting for the next scheduled request.
+     */
+    static void recover() {
+
+        if (instance != null || !Journal.hasSegments(directory())) {
+            return;
+        }
+        DispatchExecutor.daemonThreads("webhook-schedule-recovery").newThread(() -> {
+            try {
+                get();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot open the delivery schedule", e);
+            }
+        }).start();
+    }
+
+    private static File directory() {
+        return new File(ProxyConfig.getString("SCHEDULE_DIR",
+                new File(System.getProperty("java.io.tmpdir"), "webhook-schedule").getPath()));
+    }
+
+    long accept(Webhook webhook) throws IOException {
+
+        byte[] encoded = WebhookCodec.encode(webhook);
+        long id = journal.append(ByteBuffer.allocate(Long.BYTES + encoded.length)
+                .putLong(webhook.getDeliverAt()).put(encoded).array());
+        synchronized (wheel) {
+            wheel.schedule(id, webhook.getDeliverAt());
+        }
+        return id;
+    }
+
+    /**
+     * Cancels the pending delivery {@code id}; returns {@code false} if it is unknown or has already
+     * been handed off.
+     */
+    synchronized boolean cancel(long id) throws IOException {
+
+        if (!journal.isPending(id)) {
+            return false;
+        }
+        journal.markDone(id);
+        return true;
+    }
+
+    int pending() {
+
+        synchronized (wheel) {
+            return wheel.size();
+        }
+    }
+
+    private void run() {
+
+        List<Long> due = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            synchronized (wheel) {
+                wheel.advance(System.currentTimeMillis(), due::add);
+            }
+            for (long id : due) {
+                handOff(id);
+            }
+            due.clear();
+        }
+    }
+
+    private synchronized void handOff(long id) {
+
+        if (!journal.isPending(id)) {
+            return;
+        }
+        Webhook webhook;
+        try {
+            byte[] record = journal.read(id);
+            webhook = WebhookCodec.decode(Arrays.copyOfRange(record, Long.BYTES, record.length));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot read scheduled delivery " + id, e);
+            markDone(id);
+            return;
+        }
+        try {
+            delivery.accept(webhook);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot hand off scheduled delivery " + id + ", retrying", e);
+            synchronized (wheel) {
+                wheel.schedule(id, System.currentTimeMillis() + HANDOFF_RETRY_MS);
+            }
+            return;
+        }
+        markDone(id);
+    }
+
+    private void markDone(long id) {
+
+        try {
+            journal.markDone(id);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot mark scheduled delivery " + id + " as done", e);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package functions;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32C;
+
+/**
+ * Coalesces identical requests that are in flight at the same time.
+ */
+final class SingleFlight {
+
+    private static final SingleFlight INSTANCE = new SingleFlight();
+
+    private final ConcurrentHashMap<Key, CompletableFuture<StoredResponse>> flights = new ConcurrentHashMap<>();
+
+    static SingleFlight get() {
+        return INSTANCE;
+    }
+
+    static int maxBodyBytes() {
+        return ProxyConfig.getInt("COALESCE_MAX_BODY_BYTES", 256 * 1024);
+    }
+
+    Flight join(Webhook webhook) {
+
+        Key key = new Key(webhook);
+        CompletableFuture<StoredResponse> future = new CompletableFuture<>();
+        CompletableFuture<StoredResponse> existing = flights.putIfAbsent(key, future);
+        return existing == null ? new Flight(key, future, true) : new Flight(key, existing, false);
+    }
+
+    int size() {
+        return flights.size();
+    }
+
+    final class Flight {
+
+        private final Key key;
+        private final CompletableFuture<StoredResponse> future;
+        private final boolean leader;
+
+        private Flight(Key key, CompletableFuture<StoredResponse> future, boolean leader) {
+
+            this.key = key;
+            this.future = future;
+            this.leader = leader;
+        }
+
+        boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Publishes the leader's outcome to the waiting callers; {@code null} means it cannot be
+         * shared and each of them sends its own request.
+         */
+        void complete(StoredResponse response) {
+
+            flights.remove(key, future);
+            future.complete(response);
+        }
+
+        StoredResponse await(long timeoutMs) throws InterruptedException {
+
+            try {
+                return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                return null;
+            }
+        }
+    }
+
+    private static final class Key {
+
+        private final String method;
+        private final String transport;
+        private final String request;
+        private final List<Object> options;
+        private final byte[] body;
+        private final int hash;
+
+        Key(Webhook webhook) {
+
+            this.method = webhook.getMethod();
+            this.transport = webhook.getTransport();
+            this.request = HttpResponseCache.key(webhook);
+            this.options = options(webhook);
+            this.body = webhook.getBody() == null ? new byte[0] : webhook.getBody();
+            CRC32C crc = new CRC32C();
+            crc.update(body);
+            int h = method.hashCode();
+            h = 31 * h + (transport == null ? 0 : transport.hashCode());
+            h = 31 * h + request.hashCode();
+            h = 31 * h + options.hashCode();
+            this.hash = 31 * h + (int) crc.getValue();
+        }
+
+        private static List<Object> options(Webhook webhook) {
+
+            RetryPolicy retry = webhook.getRetryPolicy();
+            RateLimit rateLimit = webhook.getRateLimit();
+            return Arrays.asList(webhook.getTimeout(), webhook.getCompress(), webhook.getPriority(),
+                    webhook.getTenant(), webhook.isIdempotent(), webhook.getFallbackUrls(), rateLimit,
+                    retry == null ? null : Arrays.asList(retry.getMaxAttempts(), retry.getInitialBackoffMs(),
+                            retry.getMaxBackoffMs(), retry.getMultiplier(), new TreeSet<>(retry.getStatusCodes()),
+                            new TreeSet<>(retry.getExceptions())));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hash == key.hash && method.equals(key.method) && request.equals(key.request)
+                    && (transport == null ? key.transport == null : transport.equals(key.transport))
+                    && options.equals(key.options) && Arrays.equals(body, key.body);
+        }
+    }
+}
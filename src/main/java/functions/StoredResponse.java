@@ -0,0 +1,124 @@
+package functions;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.cloud.functions.HttpResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fully buffered outcome of an upstream call: the status, the entity headers and the body bytes,
+ * or the error text for a failed call.
+ */
+final class StoredResponse {
+
+    private static final int OVERHEAD_BYTES = 96;
+
+    final int statusCode;
+    final String contentType;
+    final String contentEncoding;
+    final byte[] body;
+    final boolean error;
+    final String rejectedBy;
+    // whether the status was answered by the destination rather than derived from a failed call
+    final boolean answered;
+
+    StoredResponse(int statusCode, String contentType, String contentEncoding, byte[] body, boolean error) {
+        this(statusCode, contentType, contentEncoding, body, error, null, !error);
+    }
+
+    private StoredResponse(int statusCode, String contentType, String contentEncoding, byte[] body, boolean error,
+                           String rejectedBy, boolean answered) {
+
+        this.statusCode = statusCode;
+        this.contentType = contentType;
+        this.contentEncoding = contentEncoding;
+        this.body = body;
+        this.error = error;
+        this.rejectedBy = rejectedBy;
+        this.answered = answered;
+    }
+
+    static StoredResponse failure(UrlResponse response) {
+
+        byte[] message = String.valueOf(response.exception.getMessage()).getBytes(StandardCharsets.UTF_8);
+        String rejectedBy = response.exception instanceof DestinationRejectedException
+                ? ((DestinationRejectedException) response.exception).getReason() : null;
+        return new StoredResponse(response.getStatusCode(), null, null, message, true, rejectedBy,
+                response.exception instanceof HttpResponseException);
+    }
+
+    /**
+     * Status and content type of a response whose body was not buffered, with an empty body. It
+     * records that the call was delivered so that duplicates are not sent again.
+     */
+    static StoredResponse delivered(com.google.api.client.http.HttpResponse upstream) {
+        return new StoredResponse(upstream.getStatusCode(), upstream.getContentType(), null, new byte[0], false);
+    }
+
+    /**
+     * Buffers the upstream body when it fits in {@code maxBytes}. A larger body is relayed to the
+     * caller directly and {@code null} is returned.
+     */
+    static StoredResponse capture(com.google.api.client.http.HttpResponse upstream,
+                                  HttpResponse httpResponse, int maxBytes) throws IOException {
+
+        Long contentLength = upstream.getHeaders().getContentLength();
+        if (contentLength != null && contentLength > maxBytes) {
+            ResponseRelay.relay(upstream, httpResponse, ResponseRelay.maxBytes());
+            return null;
+        }
+        InputStream content = upstream.getContent();
+        byte[] body = new byte[0];
+        if (content != null) {
+            try {
+                body = content.readNBytes(maxBytes + 1);
+            } catch (IOException e) {
+                ResponseRelay.abort(content);
+                throw e;
+            }
+            if (body.length > maxBytes) {
+                ResponseRelay.relay(upstream,
+                        new SequenceInputStream(new ByteArrayInputStream(body), content),
+                        httpResponse, ResponseRelay.maxBytes());
+                return null;
+            }
+            content.close();
+        }
+        return new StoredResponse(upstream.getStatusCode(), upstream.getContentType(),
+                upstream.getContentEncoding(), body, false);
+    }
+
+    int size() {
+        return body.length + OVERHEAD_BYTES;
+    }
+
+    void write(HttpResponse httpResponse) throws IOException {
+
+        httpResponse.setStatusCode(statusCode);
+        if (error) {
+            if (rejectedBy != null) {
+                httpResponse.appendHeader(DestinationRejectedException.REJECTED_HEADER, rejectedBy);
+            }
+            httpResponse.getWriter().write("Http request failed: " + new String(body, StandardCharsets.UTF_8));
+            httpResponse.getWriter().flush();
+            httpResponse.getWriter().close();
+            return;
+        }
+        if (contentType != null) {
+            httpResponse.setContentType(contentType);
+        }
+        if (contentEncoding != null) {
+            httpResponse.appendHeader("Content-Encoding", contentEncoding);
+        }
+        httpResponse.appendHeader("Content-Length", String.valueOf(body.length));
+        OutputStream outputStream = httpResponse.getOutputStream();
+        outputStream.write(body);
+        outputStream.flush();
+        outputStream.close();
+    }
+}
@@ -0,0 +1,171 @@
+package functions;
+
+import com.google.api.client.http.HttpContent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Request body decoded from the envelope's base64 {@code body} string while it is sent.
+ */
+final class StreamingBody implements HttpContent {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Reader reader;
+    private final char[] chars = new char[BUFFER_SIZE];
+    private final AtomicBoolean consumed = new AtomicBoolean();
+    private int position;
+    private int limit;
+
+    /**
+     * @param reader positioned just after the opening quote of the body string
+     */
+    StreamingBody(Reader reader) {
+        this.reader = reader;
+    }
+
+    @Override
+    public long getLength() {
+        return -1;
+    }
+
+    @Override
+    public String getType() {
+        return null;
+    }
+
+    @Override
+    public boolean retrySupported() {
+        return false;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+
+        if (!consumed.compareAndSet(false, true)) {
+            throw new IOException("Streaming body can only be sent once");
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Base64Chars base64 = new Base64Chars();
+        try (InputStream decoded = Base64.getDecoder().wrap(base64)) {
+            int read;
+            while ((read = decoded.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            // the decoder stops at the padding, which leaves the rest of the string unread
+            base64.skipPadding();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid Request Body", e);
+        }
+        verifyTrailer();
+        out.flush();
+    }
+
+    /**
+     * Decodes the whole body into memory, for the paths that need it more than once.
+     */
+    byte[] readAll() throws IOException {
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+        writeTo(body);
+        return body.toByteArray();
+    }
+
+    private int next() throws IOException {
+
+        if (position == limit) {
+            limit = reader.read(chars);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return chars[position++];
+    }
+
+    private void verifyTrailer() throws IOException {
+
+        boolean closed = false;
+        int c;
+        while ((c = next()) != -1) {
+            if (c == '}' && !closed) {
+                closed = true;
+            } else if (!Character.isWhitespace(c)) {
+                throw new IOException("Invalid Request Body: body must be the last field when streaming");
+            }
+        }
+        if (!closed) {
+            throw new EOFException("Invalid Request Body");
+        }
+    }
+
+    /**
+     * The characters of the JSON string up to its closing quote, as ASCII bytes.
+     */
+    private final class Base64Chars extends InputStream {
+
+        private boolean ended;
+
+        /**
+         * Reads up to the closing quote, allowing nothing but {@code =} on the way.
+         */
+        void skipPadding() throws IOException {
+
+            byte[] rest = new byte[4];
+            int read;
+            while ((read = read(rest, 0, rest.length)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    if (rest[i] != '=') {
+                        throw new IOException("Invalid Request Body");
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0];
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+
+            if (ended) {
+                return -1;
+            }
+            int count = 0;
+            while (count < length) {
+                int c = next();
+                if (c == -1) {
+                    throw new EOFException("Invalid Request Body");
+                }
+                if (c == '"') {
+                    ended = true;
+                    break;
+                }
+                if (c == '\\') {
+                    // JSON encoders may escape the solidus; no other escape can appear in base64
+                    if (next() != '/') {
+                        throw new IOException("Invalid Request Body");
+                    }
+                    c = '/';
+                }
+                if (c > 0x7f) {
+                    throw new IOException("Invalid Request Body");
+                }
+                bytes[offset + count++] = (byte) c;
+            }
+            return count == 0 && ended ? -1 : count;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package functions;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Records the {@link Metrics.Stage#CONNECT} stage around a socket factory's connect, which for
+ * TLS includes the handshake.
+ */
+class TimedSocketFactory implements ConnectionSocketFactory {
+
+    private final ConnectionSocketFactory delegate;
+
+    private TimedSocketFactory(ConnectionSocketFactory delegate) {
+        this.delegate = delegate;
+    }
+
+    static ConnectionSocketFactory of(ConnectionSocketFactory delegate) {
+
+        return delegate instanceof LayeredConnectionSocketFactory
+                ? new Layered((LayeredConnectionSocketFactory) delegate) : new TimedSocketFactory(delegate);
+    }
+
+    @Override
+    public Socket createSocket(HttpContext context) throws IOException {
+        return delegate.createSocket(context);
+    }
+
+    @Override
+    public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                InetSocketAddress localAddress, HttpContext context) throws IOException {
+
+        long start = System.nanoTime();
+        try {
+            return delegate.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+        } finally {
+            Metrics.record(Metrics.Stage.CONNECT, start);
+        }
+    }
+
+    private static final class Layered extends TimedSocketFactory implements LayeredConnectionSocketFactory {
+
+        private final LayeredConnectionSocketFactory layered;
+
+        Layered(LayeredConnectionSocketFactory layered) {
+
+            super(layered);
+            this.layered = layered;
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+                throws IOException {
+            return layered.createLayeredSocket(socket, target, port, context);
+        }
+    }
+}
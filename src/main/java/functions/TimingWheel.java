@@ -0,0 +1,140 @@
+package functions;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Hashed timing wheel of {@code long} ids, kept in primitive arrays. Not thread-safe.
+ */
+final class TimingWheel {
+
+    private static final int NONE = -1;
+
+    private final long origin;
+    private final long tickMillis;
+    private final int mask;
+    private final int[] heads;
+    private long currentTick;
+
+    private long[] ids;
+    private int[] rounds;
+    private int[] buckets;
+    private int[] next;
+    private int[] previous;
+    private int free = NONE;
+    private int allocated;
+    private int size;
+
+    /**
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    TimingWheel(long nowMillis, long tickMillis, int wheelSize, int initialCapacity) {
+
+        this.origin = nowMillis;
+        this.tickMillis = Math.max(1, tickMillis);
+        int bucketCount = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.mask = bucketCount - 1;
+        this.heads = new int[bucketCount];
+        Arrays.fill(heads, NONE);
+        int capacity = Math.max(16, initialCapacity);
+        ids = new long[capacity];
+        rounds = new int[capacity];
+        buckets = new int[capacity];
+        next = new int[capacity];
+        previous = new int[capacity];
+    }
+
+    /**
+     * Adds {@code id} to fire at {@code deadlineMillis}. A deadline that has already passed fires on
+     * the next tick.
+     */
+    void schedule(long id, long deadlineMillis) {
+
+        long tick = Math.max(currentTick + 1, ceilDiv(deadlineMillis - origin, tickMillis));
+        int slot = allocate();
+        int bucket = (int) (tick & mask);
+        ids[slot] = id;
+        rounds[slot] = (int) Math.min(Integer.MAX_VALUE, (tick - currentTick - 1) / heads.length);
+        buckets[slot] = bucket;
+        link(slot, bucket);
+        size++;
+    }
+
+    /**
+     * Moves the wheel up to {@code nowMillis}, handing every entry that has come due to
+     * {@code expired} in deadline-tick order.
+     */
+    void advance(long nowMillis, LongConsumer expired) {
+
+        long targetTick = (nowMillis - origin) / tickMillis;
+        while (currentTick < targetTick) {
+            currentTick++;
+            int slot = heads[(int) (currentTick & mask)];
+            while (slot != NONE) {
+                int following = next[slot];
+                if (rounds[slot] <= 0) {
+                    long id = ids[slot];
+                    remove(slot);
+                    expired.accept(id);
+                } else {
+                    rounds[slot]--;
+                }
+                slot = following;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int allocate() {
+
+        if (free != NONE) {
+            int slot = free;
+            free = next[slot];
+            return slot;
+        }
+        if (allocated == ids.length) {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            rounds = Arrays.copyOf(rounds, capacity);
+            buckets = Arrays.copyOf(buckets, capacity);
+            next = Arrays.copyOf(next, capacity);
+            previous = Arrays.copyOf(previous, capacity);
+        }
+        return allocated++;
+    }
+
+    private void link(int slot, int bucket) {
+
+        int head = heads[bucket];
+        next[slot] = head;
+        previous[slot] = NONE;
+        if (head != NONE) {
+            previous[head] = slot;
+        }
+        heads[bucket] = slot;
+    }
+
+    private void remove(int slot) {
+
+        int bucket = buckets[slot];
+        if (previous[slot] == NONE) {
+            heads[bucket] = next[slot];
+        } else {
+            next[previous[slot]] = next[slot];
+        }
+        if (next[slot] != NONE) {
+            previous[next[slot]] = previous[slot];
+        }
+        buckets[slot] = NONE;
+        next[slot] = free;
+        free = slot;
+        size--;
+    }
+
+    private static long ceilDiv(long value, long divisor) {
+        return -Math.floorDiv(-value, divisor);
+    }
+}
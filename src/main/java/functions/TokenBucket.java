@@ -0,0 +1,51 @@
+package functions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket in its GCRA form.
+ */
+final class TokenBucket {
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong theoreticalArrival;
+
+    TokenBucket(RateLimit limit) {
+
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / limit.getPerSecond()));
+        this.toleranceNanos = intervalNanos * (Math.max(1, limit.getBurst()) - 1);
+        this.theoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token and returns how long the caller must wait before using it, or -1 without taking
+     * one when that wait would exceed {@code maxWaitNanos}.
+     */
+    long reserve(long maxWaitNanos) {
+
+        long now = System.nanoTime();
+        while (true) {
+            long arrival = theoreticalArrival.get();
+            long base = arrival - now > 0 ? arrival : now;
+            long wait = base - toleranceNanos - now;
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+            if (theoreticalArrival.compareAndSet(arrival, base + intervalNanos)) {
+                return Math.max(0, wait);
+            }
+        }
+    }
+
+    /**
+     * Holds back every call for at least {@code nanos}, as asked by a {@code Retry-After}.
+     */
+    void pause(long nanos) {
+
+        long resumeAt = System.nanoTime() + nanos + toleranceNanos;
+        theoreticalArrival.accumulateAndGet(resumeAt,
+                (current, candidate) -> candidate - current > 0 ? candidate : current);
+    }
+}
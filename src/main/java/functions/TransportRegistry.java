@@ -0,0 +1,201 @@
+package functions;
+
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import com.google.api.client.util.SslUtils;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.net.ProxySelector;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the long-lived outbound transports.
+ */
+final class TransportRegistry {
+
+    static final String APACHE = "apache";
+    static final String JDK = "jdk";
+
+    private static volatile SSLContext sslContext;
+    private static volatile HttpRequestFactory apacheRequestFactory;
+    private static volatile HttpRequestFactory jdkRequestFactory;
+    private static volatile PoolingHttpClientConnectionManager apacheConnectionManager;
+
+    private TransportRegistry() {
+    }
+
+    static HttpRequestFactory requestFactory() throws IOException, GeneralSecurityException {
+        return requestFactory(null);
+    }
+
+    /**
+     * Returns the request factory for the named transport, or for the configured default when
+     * {@code transport} is {@code null}.
+     */
+    static HttpRequestFactory requestFactory(String transport) throws IOException, GeneralSecurityException {
+
+        String name = transport != null ? transport : ProxyConfig.getString("TRANSPORT", APACHE);
+        if (JDK.equals(name)) {
+            HttpRequestFactory factory = jdkRequestFactory;
+            if (factory == null) {
+                synchronized (TransportRegistry.class) {
+                    factory = jdkRequestFactory;
+                    if (factory == null) {
+                        factory = new JdkHttpTransport(sslContext()).createRequestFactory();
+                        jdkRequestFactory = factory;
+                    }
+                }
+            }
+            return factory;
+        }
+        HttpRequestFactory factory = apacheRequestFactory;
+        if (factory == null) {
+            synchronized (TransportRegistry.class) {
+                factory = apacheRequestFactory;
+                if (factory == null) {
+                    factory = newApacheTransport().createRequestFactory();
+                    apacheRequestFactory = factory;
+                }
+            }
+        }
+        return factory;
+    }
+
+    /**
+     * Opens up to {@code connections} pooled connections to the origin of {@code url} on the
+     * {@code apache} transport, resolving the host and completing the TLS handshake, and leaves them
+     * idle in the pool. Returns the number of idle connections the route then has.
+     */
+    static int prewarm(String url, int connections, int timeoutMs)
+            throws IOException, GeneralSecurityException, InterruptedException {
+
+        requestFactory(APACHE);
+        PoolingHttpClientConnectionManager manager = apacheConnectionManager;
+        HttpRoute route = route(url);
+        int count = Math.min(connections, manager.getMaxPerRoute(route));
+        List<HttpClientConnection> leased = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                HttpClientConnection connection;
+                try {
+                    connection = manager.requestConnection(route, null).get(timeoutMs, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException | ConnectionPoolTimeoutException e) {
+                    break;
+                }
+                leased.add(connection);
+                if (!connection.isOpen()) {
+                    HttpClientContext context = HttpClientContext.create();
+                    manager.connect(connection, route, timeoutMs, context);
+                    manager.routeComplete(connection, route, context);
+                }
+            }
+        } finally {
+            long keepAliveMs = TimeUnit.SECONDS.toMillis(ProxyConfig.getLong("POOL_IDLE_TIMEOUT_SECONDS", 30));
+            for (HttpClientConnection connection : leased) {
+                manager.releaseConnection(connection, null, keepAliveMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        return manager.getStats(route).getAvailable();
+    }
+
+    static int idleConnections(String url) {
+
+        PoolingHttpClientConnectionManager manager = apacheConnectionManager;
+        return manager == null ? 0 : manager.getStats(route(url)).getAvailable();
+    }
+
+    // Mirrors the route the client's route planner picks for a direct connection.
+    private static HttpRoute route(String url) {
+
+        GenericUrl genericUrl = new GenericUrl(url);
+        String scheme = genericUrl.getScheme().toLowerCase(Locale.ROOT);
+        int port = genericUrl.getPort() != -1 ? genericUrl.getPort() : "https".equals(scheme) ? 443 : 80;
+        return new HttpRoute(new HttpHost(genericUrl.getHost(), port, scheme), null, "https".equals(scheme));
+    }
+
+    /**
+     * Whether the transport sends a request body of unknown length as it is written. The jdk
+     * transport copies it into memory first, so a streamed body gains nothing there.
+     */
+    static boolean streamsRequestBodies(String transport) {
+        return !JDK.equals(transport != null ? transport : ProxyConfig.getString("TRANSPORT", APACHE));
+    }
+
+    static boolean isKnown(String transport) {
+        return APACHE.equals(transport) || JDK.equals(transport);
+    }
+
+    static SSLContext sslContext() throws IOException, GeneralSecurityException {
+
+        SSLContext context = sslContext;
+        if (context == null) {
+            synchronized (TransportRegistry.class) {
+                context = sslContext;
+                if (context == null) {
+                    context = SslUtils.getTlsSslContext();
+                    SslUtils.initSslContext(context, GoogleUtils.getCertificateTrustStore(),
+                            SslUtils.getPkixTrustManagerFactory());
+                    // Sessions are cached per host and port, so new connections resume instead of
+                    // doing a full handshake; both transports share this context and cache.
+                    SSLSessionContext sessions = context.getClientSessionContext();
+                    sessions.setSessionCacheSize(ProxyConfig.getInt("TLS_SESSION_CACHE_SIZE", 4096));
+                    sessions.setSessionTimeout(ProxyConfig.getInt("TLS_SESSION_TIMEOUT_SECONDS", 86_400));
+                    sslContext = context;
+                }
+            }
+        }
+        return context;
+    }
+
+    private static HttpTransport newApacheTransport() throws IOException, GeneralSecurityException {
+
+        Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", TimedSocketFactory.of(PlainConnectionSocketFactory.getSocketFactory()))
+                .register("https", TimedSocketFactory.of(new LazySslSocketFactory()))
+                .build();
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                socketFactories, null, null, DnsCache.get(),
+                ProxyConfig.getLong("POOL_CONNECTION_TTL_SECONDS", 300), TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(ProxyConfig.getInt("POOL_MAX_TOTAL", 200));
+        connectionManager.setDefaultMaxPerRoute(ProxyConfig.getInt("POOL_MAX_PER_ROUTE", 20));
+        connectionManager.setValidateAfterInactivity(ProxyConfig.getInt("POOL_VALIDATE_AFTER_INACTIVITY_MS", 2000));
+        apacheConnectionManager = connectionManager;
+
+        HttpClient httpClient = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setRoutePlanner(new SystemDefaultRoutePlanner(ProxySelector.getDefault()))
+                .evictExpiredConnections()
+                .evictIdleConnections(ProxyConfig.getLong("POOL_IDLE_TIMEOUT_SECONDS", 30), TimeUnit.SECONDS)
+                .disableRedirectHandling()
+                .disableAutomaticRetries()
+                .disableContentCompression()
+                .disableCookieManagement()
+                .build();
+
+        return new ApacheHttpTransport(httpClient);
+    }
+}
@@ -1,202 +1,443 @@
 package functions;
 
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.*;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
 import com.google.cloud.functions.HttpFunction;
 import com.google.cloud.functions.HttpRequest;
 import com.google.cloud.functions.HttpResponse;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonSyntaxException;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.security.GeneralSecurityException;
-import java.util.Base64;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 public class Trigger implements HttpFunction {
 
-    com.google.api.client.http.HttpRequest urlRequest;
+    private final WebhookSender webhookSender = new WebhookSender();
+    private final Bulkhead inFlight = new Bulkhead(ProxyConfig.getInt("MAX_IN_FLIGHT_REQUESTS", 256));
+
+    public Trigger() {
+        Prewarmer.start();
+        AsyncDelivery.recover();
+        ScheduledDelivery.recover();
+    }
 
     @Override
     public void service(HttpRequest httpRequest, HttpResponse httpResponse) throws IOException {
 
+        if (isMetricsRequest(httpRequest)) {
+            writeMetrics(httpResponse);
+            return;
+        }
+        if (isDeadLetterRequest(httpRequest)) {
+            serviceDeadLetters(httpRequest, httpResponse);
+            return;
+        }
+        if (isScheduleRequest(httpRequest)) {
+            serviceCancel(httpRequest, httpResponse);
+            return;
+        }
+        if (!inFlight.tryAcquire()) {
+            Metrics.recordRejected();
+            writeOverloaded(httpResponse);
+            return;
+        }
+        long start = System.nanoTime();
         try {
             validateHTTPMethodType(httpRequest);
-            JsonObject requestBody = extractRequestBody(httpRequest);
-            validateHttpRequest(requestBody);
-            Webhook webhook = extractDataFromBody(requestBody);
-            urlRequest = buildRequest(webhook);
-            UrlResponse urlResponse = new UrlResponse().executeRequest(urlRequest);
+            if (isBatchRequest(httpRequest)) {
+                serviceBatch(httpRequest, httpResponse);
+                return;
+            }
+            Webhook webhook = parseEnvelope(httpRequest);
+            boolean scheduled = webhook.getDeliverAt() > System.currentTimeMillis();
+            if (scheduled || webhook.isAsync() || webhook.getIdempotencyKey() != null || webhook.isCoalesce()
+                    || ProxyConfig.getBoolean("COALESCE_REQUESTS", false)
+                    || !TransportRegistry.streamsRequestBodies(webhook.getTransport())) {
+                bufferStreamingBody(webhook);
+            }
+            if (scheduled) {
+                writeAccepted(ScheduledDelivery.get().accept(webhook), httpResponse);
+                return;
+            }
+            if (webhook.isAsync()) {
+                writeAccepted(AsyncDelivery.get().accept(webhook), httpResponse);
+                return;
+            }
+            forwardAcceptEncoding(httpRequest, webhook);
+            if (webhook.getIdempotencyKey() != null) {
+                serviceIdempotent(webhook, httpResponse);
+                return;
+            }
+            if ("GET".equals(webhook.getMethod()) && HttpResponseCache.get().isEnabled()) {
+                serviceCachedGet(webhook, httpResponse);
+                return;
+            }
+            if (webhook.isCoalesce() || ProxyConfig.getBoolean("COALESCE_REQUESTS", false)) {
+                serviceCoalesced(webhook, httpResponse);
+                return;
+            }
+            UrlResponse urlResponse = webhookSender.send(webhook);
             writeResponse(urlResponse, httpResponse);
-        } catch (IOException | ValidationException | GeneralSecurityException e) {
+        } catch (RelayAbortedException e) {
+            throw e;
+        } catch (IOException | ValidationException e) {
             handleException(e, httpResponse);
         } catch (Exception e) {
             handleException(e, httpResponse);
+        } finally {
+            inFlight.release();
+            Metrics.record(Metrics.Stage.TOTAL, start);
         }
     }
 
-    private void handleException(Exception e, HttpResponse httpResponse) throws IOException {
-        httpResponse.setStatusCode(500);
-        httpResponse.getWriter().write("Http request failed: " + e.getMessage());
-        httpResponse.getWriter().flush();
-        httpResponse.getWriter().close();
+    /**
+     * Parses the envelope, streaming its body straight to the upstream request when
+     * {@code STREAM_BODY_MIN_BYTES} is set and the caller's {@code Content-Length} is at least that.
+     * Streaming is off by default because it needs {@code body} to be the last envelope field, which
+     * only callers that opt in can promise.
+     */
+    private Webhook parseEnvelope(HttpRequest httpRequest) throws IOException, ValidationException {
+
+        long minBytes = ProxyConfig.getLong("STREAM_BODY_MIN_BYTES", -1);
+        if (minBytes < 0 || httpRequest.getContentLength() < minBytes) {
+            return EnvelopeParser.parse(httpRequest.getReader());
+        }
+        return EnvelopeParser.parseStreaming(httpRequest.getReader(),
+                ProxyConfig.getInt("STREAM_HEAD_MAX_CHARS", 64 * 1024));
     }
 
-    private void writeResponse(UrlResponse urlResponse, HttpResponse httpResponse) throws IOException {
+    /**
+     * Journaled, scheduled, idempotent and coalesced deliveries may send the body more than once or
+     * after the request has returned, and the jdk transport buffers request bodies anyway, so a
+     * streamed body is decoded into memory for them.
+     */
+    private void bufferStreamingBody(Webhook webhook) throws IOException {
+
+        StreamingBody streamingBody = webhook.getStreamingBody();
+        if (streamingBody != null) {
+            webhook.setBody(streamingBody.readAll());
+            webhook.setStreamingBody(null);
+        }
+    }
 
-        if(urlResponse.exception != null) {
-            if (!(urlResponse.exception instanceof HttpResponseException)) {
-                httpResponse.setStatusCode(400);
-            } else {
-                httpResponse.setStatusCode(((HttpResponseException) urlResponse.exception).getStatusCode());
-            }
-            httpResponse.getWriter().write("Http request failed: " + urlResponse.exception.getMessage());
-        } else {
-            com.google.api.client.http.HttpResponse response = urlResponse.urlResponse;
-            httpResponse.setStatusCode(response.getStatusCode());
-            httpResponse.getWriter().write(response.parseAsString());
+    /**
+     * Passes the caller's {@code Accept-Encoding} upstream unless the envelope sets its own, so a
+     * compressed upstream response can be relayed as-is instead of being sent uncompressed.
+     */
+    private void forwardAcceptEncoding(HttpRequest httpRequest, Webhook webhook) {
+
+        if (!ProxyConfig.getBoolean("FORWARD_ACCEPT_ENCODING", true)
+                || webhook.getHeaders() != null && webhook.getHeaders().getAcceptEncoding() != null) {
+            return;
+        }
+        Optional<String> acceptEncoding = httpRequest.getFirstHeader("Accept-Encoding");
+        if (acceptEncoding == null || !acceptEncoding.isPresent()) {
+            return;
         }
+        if (webhook.getHeaders() == null) {
+            webhook.setHeaders(new HttpHeaders().setAcceptEncoding(null));
+        }
+        webhook.getHeaders().setAcceptEncoding(acceptEncoding.get());
+    }
+
+    private void writeOverloaded(HttpResponse httpResponse) throws IOException {
+
+        httpResponse.setStatusCode(503);
+        httpResponse.appendHeader("Retry-After", "1");
+        httpResponse.appendHeader(DestinationRejectedException.REJECTED_HEADER, "overloaded");
+        httpResponse.getWriter().write("Http request failed: Too many in-flight requests");
         httpResponse.getWriter().flush();
         httpResponse.getWriter().close();
     }
 
-    private com.google.api.client.http.HttpRequest buildRequest(Webhook entity)
-            throws IOException, GeneralSecurityException {
+    private boolean isMetricsRequest(HttpRequest httpRequest) {
 
-        HttpRequestFactory requestFactory = GoogleNetHttpTransport.newTrustedTransport().createRequestFactory();
-        GenericUrl genericUrl = new GenericUrl(entity.getUrl());
-        com.google.api.client.http.HttpRequest httpRequest =
-                requestFactory.buildPostRequest(genericUrl, ByteArrayContent.fromString(null, entity.getBody()));
+        String path = httpRequest.getPath();
+        return "GET".equals(httpRequest.getMethod()) && path != null
+                && path.equals(ProxyConfig.getString("METRICS_PATH", "/metrics"));
+    }
 
-        if(entity.getHeaders() != null) {
-            httpRequest.setHeaders(entity.getHeaders());
-        }
-        httpRequest.setReadTimeout(entity.getTimeout() * 1000);
+    private void writeMetrics(HttpResponse httpResponse) throws IOException {
 
-        return httpRequest;
+        httpResponse.setStatusCode(200);
+        httpResponse.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        Metrics.write(httpResponse.getWriter());
+        httpResponse.getWriter().flush();
+        httpResponse.getWriter().close();
     }
 
-    private Webhook extractDataFromBody(JsonObject requestBody) {
+    private boolean isDeadLetterRequest(HttpRequest httpRequest) {
 
-        Webhook webhook = new Webhook();
-        webhook.setUrl(requestBody.get("url").getAsString());
+        String path = httpRequest.getPath();
+        String deadLetterPath = ProxyConfig.getString("DEAD_LETTER_PATH", "/dead-letters");
+        return path != null && (path.equals(deadLetterPath) || path.equals(deadLetterPath + "/replay"))
+                && ProxyConfig.getString("DEAD_LETTER_TOKEN", null) != null;
+    }
 
-        String bodyBase64 = requestBody.get("body").getAsString();
-        byte[] bodyBytes = Base64.getDecoder().decode(bodyBase64);
-        webhook.setBody(new String(bodyBytes));
+    private static boolean isAuthorized(HttpRequest httpRequest, String tokenName) {
 
-        if(requestBody.has("headers")) {
-            JsonObject requestHeaders = requestBody.getAsJsonObject("headers");
-            HttpHeaders httpHeaders = new HttpHeaders();
-            for (String headerKey : requestHeaders.keySet()) {
-                String headerValue = requestHeaders.get(headerKey).getAsString().trim();
-                httpHeaders.set(headerKey, headerValue);
-            }
-            webhook.setHeaders(httpHeaders);
+        String expected = "Bearer " + ProxyConfig.getString(tokenName, null);
+        String presented = httpRequest.getFirstHeader("Authorization").orElse("");
+        return MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8),
+                presented.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * {@code GET} lists dead letters and {@code POST .../replay} re-drives them at {@code perSecond}.
+     * Both select entries with the {@code destination} (host[:port]), {@code from} and {@code to}
+     * (epoch millis, end exclusive) and {@code limit} query parameters. Callers must send
+     * {@code DEAD_LETTER_TOKEN} as a bearer token.
+     */
+    private void serviceDeadLetters(HttpRequest httpRequest, HttpResponse httpResponse) throws IOException {
+
+        if (!isAuthorized(httpRequest, "DEAD_LETTER_TOKEN")) {
+            writeUnauthorized(httpResponse);
+            return;
+        }
+        boolean replay = httpRequest.getPath().endsWith("/replay");
+        if (!(replay ? "POST" : "GET").equals(httpRequest.getMethod())) {
+            handleException(new ValidationException("Method not allowed"), httpResponse);
+            return;
         }
-        if(requestBody.has("options")) {
-            JsonObject optionsJson = requestBody.getAsJsonObject("options");
-            if(optionsJson.has("timeout")) {
-                webhook.setTimeout(requestBody.getAsJsonObject("options").get("timeout").getAsInt());
+        double perSecond;
+        List<DeadLetterLog.Entry> entries;
+        try {
+            perSecond = Double.parseDouble(queryParameter(httpRequest, "perSecond", "10"));
+            if (!(perSecond > 0)) {
+                throw new NumberFormatException();
             }
+            entries = DeadLetterLog.get().find(queryParameter(httpRequest, "destination", null),
+                    Long.parseLong(queryParameter(httpRequest, "from", "0")),
+                    Long.parseLong(queryParameter(httpRequest, "to", String.valueOf(Long.MAX_VALUE))),
+                    Integer.parseInt(queryParameter(httpRequest, "limit", "1000")));
+        } catch (NumberFormatException e) {
+            handleException(new ValidationException("Invalid Dead Letter Query"), httpResponse);
+            return;
         }
-        return webhook;
+
+        httpResponse.setContentType("application/json");
+        if (replay) {
+            int queued = DeadLetterReplay.replay(DeadLetterLog.get(), webhookSender, entries, perSecond);
+            httpResponse.setStatusCode(202);
+            httpResponse.getWriter().write("{\"replaying\":" + queued + "}");
+        } else {
+            httpResponse.setStatusCode(200);
+            DeadLetterLog.writeEntries(entries, httpResponse.getWriter());
+        }
+        httpResponse.getWriter().flush();
+        httpResponse.getWriter().close();
     }
 
-    private JsonObject extractRequestBody(HttpRequest request) throws IOException, ValidationException {
+    private void writeUnauthorized(HttpResponse httpResponse) throws IOException {
 
-        BufferedReader reader = request.getReader();
-        StringBuilder requestBody = new StringBuilder();
-        String line;
-        while ((line = reader.readLine()) != null) {
-            requestBody.append(line);
-        }
+        httpResponse.setStatusCode(401);
+        httpResponse.appendHeader("WWW-Authenticate", "Bearer");
+        httpResponse.getWriter().write("Http request failed: Unauthorized");
+        httpResponse.getWriter().flush();
+        httpResponse.getWriter().close();
+    }
 
-        String requestBodyJson = requestBody.toString();
+    private boolean isScheduleRequest(HttpRequest httpRequest) {
+
+        String path = httpRequest.getPath();
+        return path != null && path.equals(ProxyConfig.getString("SCHEDULE_PATH", "/scheduled"))
+                && ProxyConfig.getString("SCHEDULE_TOKEN", null) != null;
+    }
+
+    /**
+     * {@code DELETE} with the {@code id} returned when the delivery was scheduled cancels it: 204 when
+     * it was still pending, 404 otherwise.
+     */
+    private void serviceCancel(HttpRequest httpRequest, HttpResponse httpResponse) throws IOException {
+
+        if (!isAuthorized(httpRequest, "SCHEDULE_TOKEN")) {
+            writeUnauthorized(httpResponse);
+            return;
+        }
+        if (!"DELETE".equals(httpRequest.getMethod())) {
+            handleException(new ValidationException("Method not allowed"), httpResponse);
+            return;
+        }
+        long id;
         try {
-            return JsonParser.parseString(requestBodyJson).getAsJsonObject();
-        } catch (JsonSyntaxException e) {
-            throw new ValidationException("Invalid Request Body");
+            id = Long.parseLong(queryParameter(httpRequest, "id", ""));
+        } catch (NumberFormatException e) {
+            handleException(new ValidationException("Invalid Delivery Id"), httpResponse);
+            return;
         }
+        httpResponse.setStatusCode(ScheduledDelivery.get().cancel(id) ? 204 : 404);
+        httpResponse.getWriter().close();
     }
 
-    private void validateHTTPMethodType(HttpRequest request) throws ValidationException {
+    private static String queryParameter(HttpRequest httpRequest, String name, String defaultValue) {
 
-        if(!request.getMethod().equals("POST")) {
-            throw new ValidationException("Method not allowed");
-        }
+        List<String> values = httpRequest.getQueryParameters().get(name);
+        return values == null || values.isEmpty() || values.get(0).isEmpty() ? defaultValue : values.get(0);
     }
 
-    private void validateHttpRequest(JsonObject requestBody) throws ValidationException {
+    private boolean isBatchRequest(HttpRequest httpRequest) {
 
-        validateUrl(requestBody);
-        validateBody(requestBody);
-        validateHeaders(requestBody);
-        validateOptions(requestBody);
+        String path = httpRequest.getPath();
+        return path != null && path.endsWith("/batch");
     }
 
-    private void validateUrl(JsonObject requestBody) throws ValidationException {
+    private void serviceBatch(HttpRequest httpRequest, HttpResponse httpResponse)
+            throws IOException, ValidationException, InterruptedException {
 
-        if (!requestBody.has("url")) {
-            throw new ValidationException("Url is missing");
-        }
-        String url = requestBody.get("url").getAsString();
-        String URL_REGEX = "^(http|https)://([^:/\\s]+)(:\\d+)?(/[^/\\s]*)*$";
-        if (!url.matches(URL_REGEX)) {
-            throw new ValidationException("Invalid Request Url");
-        }
+        List<EnvelopeParser.Envelope> envelopes =
+                EnvelopeParser.parseBatch(httpRequest.getReader(), ProxyConfig.getInt("BATCH_MAX_ITEMS", 1000));
+        BatchDispatcher dispatcher =
+                new BatchDispatcher(webhookSender, ProxyConfig.getInt("BATCH_MAX_IN_FLIGHT", 64));
+        List<BatchDispatcher.Result> results = dispatcher.dispatch(envelopes);
+
+        httpResponse.setStatusCode(200);
+        httpResponse.setContentType("application/json");
+        BatchDispatcher.writeResults(results, httpResponse.getWriter());
+        httpResponse.getWriter().close();
     }
 
-    private void validateBody(JsonObject requestBody) throws ValidationException {
+    private void serviceIdempotent(Webhook webhook, HttpResponse httpResponse)
+            throws IOException, InterruptedException {
 
-        if (!requestBody.has("body")) {
-            throw new ValidationException("Body is missing");
+        IdempotencyCache.Claim claim = IdempotencyCache.get().claim(IdempotencyCache.key(webhook));
+        if (claim == null) {
+            Metrics.recordRejected();
+            writeOverloaded(httpResponse);
+            return;
         }
+        if (!claim.isLeader()) {
+            StoredResponse stored = claim.await(TimeUnit.SECONDS.toMillis(3600));
+            if (stored != null) {
+                stored.write(httpResponse);
+            } else {
+                writeResponse(webhookSender.send(webhook), httpResponse);
+            }
+            return;
+        }
+
+        StoredResponse stored = null;
+        UrlResponse urlResponse = null;
+        boolean buffered = false;
         try {
-            String bodyBase64 = requestBody.get("body").getAsString();
-            Base64.getDecoder().decode(bodyBase64);
-        } catch (IllegalArgumentException e) {
-            throw new ValidationException("Invalid Request Body");
+            urlResponse = webhookSender.send(webhook);
+            if (urlResponse.exception != null) {
+                stored = StoredResponse.failure(urlResponse);
+            } else {
+                stored = StoredResponse.capture(urlResponse.urlResponse, httpResponse, IdempotencyCache.maxBodyBytes());
+            }
+            buffered = stored != null;
+        } finally {
+            if (stored == null && urlResponse != null && urlResponse.exception == null) {
+                stored = StoredResponse.delivered(urlResponse.urlResponse);
+            }
+            claim.complete(stored);
+        }
+        if (buffered) {
+            stored.write(httpResponse);
         }
     }
 
-    private void validateHeaders(JsonObject requestBody) throws ValidationException {
+    private void serviceCoalesced(Webhook webhook, HttpResponse httpResponse)
+            throws IOException, InterruptedException {
+
+        SingleFlight.Flight flight = SingleFlight.get().join(webhook);
+        if (!flight.isLeader()) {
+            StoredResponse shared = flight.await(TimeUnit.SECONDS.toMillis(3600));
+            if (shared != null) {
+                shared.write(httpResponse);
+            } else {
+                writeResponse(webhookSender.send(webhook), httpResponse);
+            }
+            return;
+        }
 
-        if (requestBody.has("headers")) {
-            try {
-                requestBody.getAsJsonObject("headers");
-            } catch (ClassCastException e) {
-                throw new ValidationException("Invalid Request Headers");
+        StoredResponse stored = null;
+        try {
+            UrlResponse urlResponse = webhookSender.send(webhook);
+            if (urlResponse.exception != null) {
+                stored = StoredResponse.failure(urlResponse);
+            } else {
+                stored = StoredResponse.capture(urlResponse.urlResponse, httpResponse, SingleFlight.maxBodyBytes());
             }
+        } finally {
+            flight.complete(stored);
+        }
+        if (stored != null) {
+            stored.write(httpResponse);
         }
     }
 
-    private void validateOptions(JsonObject requestBody) throws ValidationException {
+    private void serviceCachedGet(Webhook webhook, HttpResponse httpResponse) throws IOException {
 
-        if (requestBody.has("options")) {
-            try {
-                JsonObject options = requestBody.getAsJsonObject("options");
-                validateTimeoutOption(options);
-            } catch (ClassCastException e) {
-                throw new ValidationException("Invalid Request Options");
-            }
+        HttpResponseCache cache = HttpResponseCache.get();
+        String key = HttpResponseCache.key(webhook);
+        HttpResponseCache.Entry cached = cache.lookup(key, webhook);
+        if (cached != null && cached.isFresh(webhook)) {
+            cached.response.write(httpResponse);
+            return;
         }
+
+        boolean conditional = cached != null && cached.canRevalidate();
+        UrlResponse urlResponse = webhookSender.send(conditional ? cached.conditional(webhook) : webhook);
+        if (conditional && urlResponse.exception instanceof HttpResponseException
+                && ((HttpResponseException) urlResponse.exception).getStatusCode() == 304) {
+            HttpHeaders headers = ((HttpResponseException) urlResponse.exception).getHeaders();
+            cache.revalidated(key, cached, headers).response.write(httpResponse);
+            return;
+        }
+        if (urlResponse.exception != null
+                || !cache.isStorable(webhook, urlResponse.getStatusCode(), urlResponse.urlResponse.getHeaders())) {
+            writeResponse(urlResponse, httpResponse);
+            return;
+        }
+
+        StoredResponse stored = StoredResponse.capture(urlResponse.urlResponse, httpResponse, cache.maxEntryBytes());
+        if (stored != null) {
+            cache.store(key, stored, urlResponse.urlResponse.getHeaders());
+            stored.write(httpResponse);
+        }
+    }
+
+    private void writeAccepted(long id, HttpResponse httpResponse) throws IOException {
+
+        httpResponse.setStatusCode(202);
+        httpResponse.setContentType("application/json");
+        httpResponse.getWriter().write("{\"id\":\"" + id + "\"}");
+        httpResponse.getWriter().flush();
+        httpResponse.getWriter().close();
+    }
+
+    private void handleException(Exception e, HttpResponse httpResponse) throws IOException {
+        httpResponse.setStatusCode(500);
+        httpResponse.getWriter().write("Http request failed: " + e.getMessage());
+        httpResponse.getWriter().flush();
+        httpResponse.getWriter().close();
     }
 
-    private void validateTimeoutOption(JsonObject options) throws ValidationException {
+    private void writeResponse(UrlResponse urlResponse, HttpResponse httpResponse) throws IOException {
 
-        if (options.has("timeout")) {
-            try {
-                Integer timeout = options.get("timeout").getAsInt();
-                if (timeout < 0 || timeout > 3600) {
-                    throw new ValidationException("Invalid Timeout Value");
-                }
-            } catch (NumberFormatException e) {
-                throw new ValidationException("Invalid Timeout Value");
+        if(urlResponse.exception != null) {
+            httpResponse.setStatusCode(urlResponse.getStatusCode());
+            if (urlResponse.exception instanceof DestinationRejectedException) {
+                httpResponse.appendHeader(DestinationRejectedException.REJECTED_HEADER,
+                        ((DestinationRejectedException) urlResponse.exception).getReason());
             }
+            httpResponse.getWriter().write("Http request failed: " + urlResponse.exception.getMessage());
+        } else {
+            ResponseRelay.relay(urlResponse.urlResponse, httpResponse, ResponseRelay.maxBytes());
+            return;
         }
+        httpResponse.getWriter().flush();
+        httpResponse.getWriter().close();
     }
-}
 
+    private void validateHTTPMethodType(HttpRequest request) throws ValidationException {
 
+        if(!request.getMethod().equals("POST")) {
+            throw new ValidationException("Method not allowed");
+        }
+    }
+}
@@ -23,4 +23,18 @@ public class UrlResponse {
         }
         return response;
     }
+
+    public int getStatusCode() {
+
+        if (exception == null) {
+            return urlResponse.getStatusCode();
+        }
+        if (exception instanceof HttpResponseException) {
+            return ((HttpResponseException) exception).getStatusCode();
+        }
+        if (exception instanceof DestinationRejectedException) {
+            return ((DestinationRejectedException) exception).getStatusCode();
+        }
+        return 400;
+    }
 }
@@ -2,12 +2,29 @@ package functions;
 
 import com.google.api.client.http.HttpHeaders;
 
+import java.util.List;
+
 public class Webhook {
 
     private String url;
+    private String method = "POST";
     private HttpHeaders headers;
-    private String body;
+    private byte[] body;
     private Integer timeout;
+    private boolean async;
+    private RetryPolicy retryPolicy;
+    private String idempotencyKey;
+    private String transport;
+    private Boolean compress;
+    private RateLimit rateLimit;
+    private boolean coalesce;
+    private long deliverAt;
+    private Priority priority;
+    private String tenant;
+    private boolean idempotent;
+    private List<String> fallbackUrls;
+    private StreamingBody streamingBody;
+    private boolean background;
 
     public String getUrl() {
         return url;
@@ -17,6 +34,14 @@ public class Webhook {
         this.url = url;
     }
 
+    public String getMethod() {
+        return method;
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
     public HttpHeaders getHeaders() {
         return headers;
     }
@@ -25,11 +50,11 @@ public class Webhook {
         this.headers = headers;
     }
 
-    public String getBody() {
+    public byte[] getBody() {
         return body;
     }
 
-    public void setBody(String body) {
+    public void setBody(byte[] body) {
         this.body = body;
     }
 
@@ -40,4 +65,145 @@ public class Webhook {
     public void setTimeout(Integer timeout) {
         this.timeout = timeout;
     }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    public Boolean getCompress() {
+        return compress;
+    }
+
+    public void setCompress(Boolean compress) {
+        this.compress = compress;
+    }
+
+    public RateLimit getRateLimit() {
+        return rateLimit;
+    }
+
+    public void setRateLimit(RateLimit rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    public long getDeliverAt() {
+        return deliverAt;
+    }
+
+    public void setDeliverAt(long deliverAt) {
+        this.deliverAt = deliverAt;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    public void setTenant(String tenant) {
+        this.tenant = tenant;
+    }
+
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    public void setIdempotent(boolean idempotent) {
+        this.idempotent = idempotent;
+    }
+
+    public List<String> getFallbackUrls() {
+        return fallbackUrls;
+    }
+
+    public void setFallbackUrls(List<String> fallbackUrls) {
+        this.fallbackUrls = fallbackUrls;
+    }
+
+    StreamingBody getStreamingBody() {
+        return streamingBody;
+    }
+
+    void setStreamingBody(StreamingBody streamingBody) {
+        this.streamingBody = streamingBody;
+    }
+
+    /**
+     * Whether the call is made with no caller waiting for its outcome, as for async, scheduled and
+     * replayed deliveries.
+     */
+    boolean isBackground() {
+        return background;
+    }
+
+    void setBackground(boolean background) {
+        this.background = background;
+    }
+
+    public Webhook copy() {
+
+        Webhook copy = new Webhook();
+        copy.url = url;
+        copy.method = method;
+        copy.headers = headers == null ? null : headers.clone();
+        copy.body = body;
+        copy.timeout = timeout;
+        copy.async = async;
+        copy.retryPolicy = retryPolicy;
+        copy.idempotencyKey = idempotencyKey;
+        copy.transport = transport;
+        copy.compress = compress;
+        copy.rateLimit = rateLimit;
+        copy.coalesce = coalesce;
+        copy.deliverAt = deliverAt;
+        copy.priority = priority;
+        copy.tenant = tenant;
+        copy.idempotent = idempotent;
+        copy.fallbackUrls = fallbackUrls;
+        copy.streamingBody = streamingBody;
+        copy.background = background;
+        return copy;
+    }
 }
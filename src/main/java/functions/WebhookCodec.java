@@ -0,0 +1,193 @@
+package functions;
+
+import com.google.api.client.http.HttpHeaders;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary form of a {@link Webhook} for the on-disk journals.
+ */
+final class WebhookCodec {
+
+    private static final byte VERSION = 8;
+
+    private WebhookCodec() {
+    }
+
+    static byte[] encode(Webhook webhook) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(webhook.getBody().length + 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        out.writeUTF(webhook.getUrl());
+        writeHeaders(out, webhook.getHeaders());
+        out.writeInt(webhook.getBody().length);
+        out.write(webhook.getBody());
+        out.writeInt(webhook.getTimeout());
+        writeRetryPolicy(out, webhook.getRetryPolicy());
+        out.writeUTF(webhook.getMethod());
+        out.writeUTF(webhook.getTransport() == null ? "" : webhook.getTransport());
+        out.writeByte(webhook.getCompress() == null ? -1 : webhook.getCompress() ? 1 : 0);
+        out.writeBoolean(webhook.getRateLimit() != null);
+        if (webhook.getRateLimit() != null) {
+            out.writeDouble(webhook.getRateLimit().getPerSecond());
+            out.writeInt(webhook.getRateLimit().getBurst());
+        }
+        out.writeByte(webhook.getPriority() == null ? -1 : webhook.getPriority().ordinal());
+        out.writeUTF(webhook.getTenant() == null ? "" : webhook.getTenant());
+        out.writeBoolean(webhook.isIdempotent());
+        out.writeInt(webhook.getFallbackUrls() == null ? -1 : webhook.getFallbackUrls().size());
+        if (webhook.getFallbackUrls() != null) {
+            for (String fallbackUrl : webhook.getFallbackUrls()) {
+                out.writeUTF(fallbackUrl);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static Webhook decode(byte[] data) throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        byte version = in.readByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported journal record version " + version);
+        }
+        Webhook webhook = new Webhook();
+        webhook.setUrl(in.readUTF());
+        webhook.setHeaders(readHeaders(in));
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        webhook.setBody(body);
+        webhook.setTimeout(in.readInt());
+        if (version >= 2) {
+            webhook.setRetryPolicy(readRetryPolicy(in));
+        }
+        if (version >= 3) {
+            webhook.setMethod(in.readUTF());
+        }
+        if (version >= 4) {
+            String transport = in.readUTF();
+            webhook.setTransport(transport.isEmpty() ? null : transport);
+        }
+        if (version >= 5) {
+            byte compress = in.readByte();
+            webhook.setCompress(compress < 0 ? null : compress == 1);
+        }
+        if (version >= 6 && in.readBoolean()) {
+            webhook.setRateLimit(new RateLimit(in.readDouble(), in.readInt()));
+        }
+        if (version >= 7) {
+            byte priority = in.readByte();
+            webhook.setPriority(priority < 0 ? null : Priority.values()[priority]);
+            String tenant = in.readUTF();
+            webhook.setTenant(tenant.isEmpty() ? null : tenant);
+        }
+        if (version >= 8) {
+            webhook.setIdempotent(in.readBoolean());
+            int fallbackCount = in.readInt();
+            if (fallbackCount >= 0) {
+                List<String> fallbackUrls = new ArrayList<>(fallbackCount);
+                for (int i = 0; i < fallbackCount; i++) {
+                    fallbackUrls.add(in.readUTF());
+                }
+                webhook.setFallbackUrls(fallbackUrls);
+            }
+        }
+        return webhook;
+    }
+
+    private static void writeRetryPolicy(DataOutputStream out, RetryPolicy policy) throws IOException {
+
+        out.writeBoolean(policy != null);
+        if (policy == null) {
+            return;
+        }
+        out.writeInt(policy.getMaxAttempts());
+        out.writeLong(policy.getInitialBackoffMs());
+        out.writeLong(policy.getMaxBackoffMs());
+        out.writeDouble(policy.getMultiplier());
+        out.writeInt(policy.getStatusCodes().size());
+        for (Integer statusCode : policy.getStatusCodes()) {
+            out.writeInt(statusCode);
+        }
+        out.writeInt(policy.getExceptions().size());
+        for (String exception : policy.getExceptions()) {
+            out.writeUTF(exception);
+        }
+    }
+
+    private static RetryPolicy readRetryPolicy(DataInputStream in) throws IOException {
+
+        if (!in.readBoolean()) {
+            return null;
+        }
+        RetryPolicy policy = new RetryPolicy();
+        policy.setMaxAttempts(in.readInt());
+        policy.setInitialBackoffMs(in.readLong());
+        policy.setMaxBackoffMs(in.readLong());
+        policy.setMultiplier(in.readDouble());
+        Set<Integer> statusCodes = new HashSet<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            statusCodes.add(in.readInt());
+        }
+        policy.setStatusCodes(statusCodes);
+        Set<String> exceptions = new HashSet<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            exceptions.add(in.readUTF());
+        }
+        policy.setExceptions(exceptions);
+        return policy;
+    }
+
+    private static void writeHeaders(DataOutputStream out, HttpHeaders headers) throws IOException {
+
+        if (headers == null) {
+            out.writeInt(-1);
+            return;
+        }
+        List<String[]> values = new ArrayList<>();
+        for (Map.Entry<String, Object> header : headers.entrySet()) {
+            if (header.getValue() instanceof Iterable) {
+                for (Object value : (Iterable<?>) header.getValue()) {
+                    values.add(new String[]{header.getKey(), String.valueOf(value)});
+                }
+            } else if (header.getValue() != null) {
+                values.add(new String[]{header.getKey(), String.valueOf(header.getValue())});
+            }
+        }
+        out.writeInt(values.size());
+        for (String[] value : values) {
+            out.writeUTF(value[0]);
+            out.writeUTF(value[1]);
+        }
+    }
+
+    private static HttpHeaders readHeaders(DataInputStream in) throws IOException {
+
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+        Map<String, List<String>> values = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            values.computeIfAbsent(in.readUTF(), key -> new ArrayList<>()).add(in.readUTF());
+        }
+        HttpHeaders headers = new HttpHeaders().setAcceptEncoding(null);
+        for (Map.Entry<String, List<String>> header : values.entrySet()) {
+            List<String> headerValues = header.getValue();
+            headers.set(header.getKey(), headerValues.size() == 1 ? headerValues.get(0) : headerValues);
+        }
+        return headers;
+    }
+}
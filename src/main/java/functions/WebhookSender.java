@@ -0,0 +1,349 @@
+package functions;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponseException;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+public class WebhookSender {
+
+    static final Set<String> METHODS = Set.of("GET", "HEAD", "POST", "PUT", "PATCH", "DELETE", "OPTIONS");
+    private static final Set<String> METHODS_WITHOUT_BODY = Set.of("GET", "HEAD", "OPTIONS");
+
+    private static final ScheduledExecutorService RETRY_SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(DispatchExecutor.daemonThreads("webhook-retry"));
+
+    public HttpRequest buildRequest(Webhook entity) throws IOException, GeneralSecurityException {
+        return buildRequest(entity, false);
+    }
+
+    HttpRequest buildRequest(Webhook entity, boolean gzip) throws IOException, GeneralSecurityException {
+
+        long start = System.nanoTime();
+        HttpRequestFactory requestFactory = TransportRegistry.requestFactory(entity.getTransport());
+        GenericUrl genericUrl = new GenericUrl(entity.getUrl());
+        boolean hasBody = !METHODS_WITHOUT_BODY.contains(entity.getMethod());
+        HttpContent content = null;
+        if (hasBody && entity.getStreamingBody() != null) {
+            content = entity.getStreamingBody();
+            gzip = false;
+        } else if (hasBody) {
+            content = new ByteArrayContent(null, gzip ? Compression.gzip(entity.getBody()) : entity.getBody());
+        }
+        HttpRequest httpRequest = requestFactory.buildRequest(entity.getMethod(), genericUrl, content);
+
+        HttpHeaders headers = httpRequest.getHeaders().setAcceptEncoding(null);
+        if(entity.getHeaders() != null) {
+            headers.fromHttpHeaders(entity.getHeaders());
+        }
+        if (gzip && hasBody) {
+            headers.setContentEncoding(Compression.GZIP);
+        }
+        httpRequest.setReadTimeout(entity.getTimeout() * 1000);
+        httpRequest.setResponseReturnRawInputStream(true);
+
+        Metrics.record(Metrics.Stage.BUILD, start);
+        return httpRequest;
+    }
+
+    public UrlResponse send(Webhook webhook) {
+        return dispatch(webhook, Runnable::run).join();
+    }
+
+    /**
+     * Sends the webhook without blocking the caller. Attempts run on the dispatch executor and
+     * retry backoffs are timed by a scheduler, so no thread sleeps between attempts.
+     */
+    public CompletableFuture<UrlResponse> sendAsync(Webhook webhook) {
+        return dispatch(webhook, DispatchExecutor.get());
+    }
+
+    private CompletableFuture<UrlResponse> dispatch(Webhook webhook, Executor firstAttemptExecutor) {
+
+        CompletableFuture<UrlResponse> result = new CompletableFuture<>();
+        Destination destination;
+        try {
+            destination = Destination.of(webhook.getUrl());
+        } catch (RuntimeException e) {
+            result.complete(failed(e));
+            return result;
+        }
+        destination.getRetryBudget().deposit();
+        firstAttemptExecutor.execute(guarded(() -> attempt(webhook, destination, 1, result), result));
+        return result;
+    }
+
+    /**
+     * Completes {@code result} with the failure if {@code task} throws, so no caller waits forever.
+     */
+    private static Runnable guarded(Runnable task, CompletableFuture<UrlResponse> result) {
+
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                result.complete(failed(e));
+            }
+        };
+    }
+
+    private void attempt(Webhook webhook, Destination destination, int attempt,
+                         CompletableFuture<UrlResponse> result) {
+
+        long wait;
+        try {
+            wait = destination.reserve(webhook.getRateLimit());
+        } catch (RateLimitedException e) {
+            UrlResponse response = failed(e);
+            Metrics.recordOutcome(destination.getHost(), response);
+            complete(webhook, destination, attempt, response, result);
+            return;
+        }
+        if (wait > 0) {
+            RETRY_SCHEDULER.schedule(
+                    () -> DispatchExecutor.get().execute(
+                            guarded(() -> enqueue(webhook, destination, attempt, result), result)),
+                    wait, TimeUnit.NANOSECONDS);
+            return;
+        }
+        enqueue(webhook, destination, attempt, result);
+    }
+
+    /**
+     * Hands the attempt to the lane of the webhook's priority, where it waits its tenant's turn when
+     * the lane is busy.
+     */
+    private void enqueue(Webhook webhook, Destination destination, int attempt,
+                         CompletableFuture<UrlResponse> result) {
+
+        Lane lane = Lane.of(webhook.getPriority());
+        if (!lane.submit(webhook.getTenant(), Lane.cost(webhook),
+                guarded(() -> transmit(webhook, destination, attempt, result), result))) {
+            UrlResponse response =
+                    failed(new DestinationRejectedException(503, "lane", "Lane " + lane.getName() + " is full"));
+            Metrics.recordOutcome(destination.getHost(), response);
+            complete(webhook, destination, attempt, response, result);
+        }
+    }
+
+    private void transmit(Webhook webhook, Destination destination, int attempt,
+                          CompletableFuture<UrlResponse> result) {
+
+        boolean replayable = webhook.getStreamingBody() == null;
+        List<String> fallbackUrls = replayable && webhook.getFallbackUrls() != null
+                ? webhook.getFallbackUrls() : List.of();
+        long hedgeDelay = replayable && webhook.isIdempotent() ? destination.hedgeDelayMillis() : -1;
+        int nextFallback = 0;
+        UrlResponse response;
+        if (hedgeDelay < 0) {
+            response = exchange(webhook, destination);
+        } else {
+            // the hedge goes to the first replica when there is one
+            Webhook hedge = webhook;
+            if (!fallbackUrls.isEmpty()) {
+                hedge = webhook.copy();
+                hedge.setUrl(fallbackUrls.get(0));
+            }
+            AtomicBoolean hedgeSent = new AtomicBoolean();
+            response = hedged(webhook, destination, hedge, hedgeDelay, hedgeSent);
+            if (hedgeSent.get() && hedge != webhook) {
+                nextFallback = 1;
+            }
+        }
+        while (!isDefinitive(response) && nextFallback < fallbackUrls.size()) {
+            Webhook fallback = webhook.copy();
+            fallback.setUrl(fallbackUrls.get(nextFallback++));
+            Metrics.recordFailover();
+            response = exchange(fallback);
+        }
+        complete(webhook, destination, attempt, response, result);
+    }
+
+    /**
+     * Sends {@code webhook} and, if no answer has come within {@code delayMillis}, also {@code hedge}
+     * as long as the retry budget allows, setting {@code hedgeSent}. The first definitive answer wins
+     * and the other response is discarded when it arrives; if neither answers definitively the later
+     * failure is returned.
+     */
+    private UrlResponse hedged(Webhook webhook, Destination destination, Webhook hedge, long delayMillis,
+                               AtomicBoolean hedgeSent) {
+
+        CompletableFuture<UrlResponse> primary =
+                CompletableFuture.supplyAsync(() -> exchange(webhook, destination), DispatchExecutor.get());
+        try {
+            return primary.get(delayMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (!destination.getRetryBudget().tryWithdraw()) {
+                return primary.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return primary.join();
+        } catch (ExecutionException e) {
+            return failed(e);
+        }
+        hedgeSent.set(true);
+        Metrics.recordHedge();
+        CompletableFuture<UrlResponse> secondary = CompletableFuture.supplyAsync(
+                () -> hedge == webhook ? exchange(webhook, destination) : exchange(hedge), DispatchExecutor.get());
+
+        CompletableFuture<UrlResponse> winner = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(2);
+        BiConsumer<UrlResponse, Throwable> race = (response, error) -> {
+            UrlResponse outcome = response != null ? response : failed(new IOException(error));
+            boolean last = pending.decrementAndGet() == 0;
+            if ((isDefinitive(outcome) || last) && winner.complete(outcome)) {
+                return;
+            }
+            if (outcome.exception == null) {
+                try {
+                    outcome.urlResponse.disconnect();
+                } catch (IOException ignored) {
+                    // the losing response is not needed
+                }
+            }
+        };
+        primary.whenComplete(race);
+        secondary.whenComplete(race);
+        return winner.join();
+    }
+
+    private UrlResponse exchange(Webhook webhook) {
+
+        Destination destination;
+        try {
+            destination = Destination.of(webhook.getUrl());
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+        return exchange(webhook, destination);
+    }
+
+    /**
+     * One call to {@code destination}, repeated uncompressed if the host refuses a gzip body.
+     */
+    private UrlResponse exchange(Webhook webhook, Destination destination) {
+
+        UrlResponse response;
+        try {
+            boolean gzip = Compression.shouldCompress(webhook, destination);
+            response = sendOnce(webhook, destination, gzip);
+            if (gzip && Compression.isUnsupportedEncoding(response)) {
+                destination.gzipRejected();
+                response = sendOnce(webhook, destination, false);
+            }
+            Compression.learn(destination, response);
+            if (response.exception instanceof HttpResponseException
+                    && ((HttpResponseException) response.exception).getStatusCode() == 429) {
+                destination.throttled(retryAfterMillis((HttpResponseException) response.exception));
+            }
+        } catch (RuntimeException e) {
+            response = failed(e);
+        }
+        Metrics.recordOutcome(destination.getHost(), response);
+        return response;
+    }
+
+    private void complete(Webhook webhook, Destination destination, int attempt, UrlResponse response,
+                          CompletableFuture<UrlResponse> result) {
+
+        RetryPolicy policy = webhook.getRetryPolicy();
+        if (policy != null && webhook.getStreamingBody() == null && attempt < policy.getMaxAttempts()
+                && policy.shouldRetry(response)
+                && destination.getRetryBudget().tryWithdraw()) {
+            RETRY_SCHEDULER.schedule(
+                    () -> DispatchExecutor.get().execute(
+                            guarded(() -> attempt(webhook, destination, attempt + 1, result), result)),
+                    policy.backoffMillis(attempt), TimeUnit.MILLISECONDS);
+            return;
+        }
+        DeadLetterLog.recordIfFailed(webhook, destination, response);
+        result.complete(response);
+    }
+
+    /**
+     * Whether the response settles the call: any answer but a 429 or a 5xx. Anything else is worth
+     * trying at a fallback url.
+     */
+    private static boolean isDefinitive(UrlResponse response) {
+
+        if (response.exception == null) {
+            return true;
+        }
+        if (!(response.exception instanceof HttpResponseException)) {
+            return false;
+        }
+        int status = ((HttpResponseException) response.exception).getStatusCode();
+        return status < 500 && status != 429;
+    }
+
+    private UrlResponse sendOnce(Webhook webhook, Destination destination, boolean gzip) {
+
+        try {
+            destination.acquire();
+        } catch (DestinationRejectedException e) {
+            return failed(e);
+        }
+        long start = System.nanoTime();
+        UrlResponse response = null;
+        try {
+            response = execute(webhook, gzip, destination.readTimeoutMillis(webhook));
+        } catch (RuntimeException | Error e) {
+            response = failed(new IllegalStateException(e));
+            throw e;
+        } finally {
+            destination.release(response, System.nanoTime() - start);
+        }
+        Metrics.record(Metrics.Stage.TTFB, start);
+        return response;
+    }
+
+    private UrlResponse execute(Webhook webhook, boolean gzip, int readTimeoutMillis) {
+
+        try {
+            HttpRequest httpRequest = buildRequest(webhook, gzip);
+            httpRequest.setReadTimeout(readTimeoutMillis);
+            return new UrlResponse().executeRequest(httpRequest);
+        } catch (IOException | GeneralSecurityException e) {
+            return failed(e);
+        }
+    }
+
+    private static long retryAfterMillis(HttpResponseException e) {
+
+        Object retryAfter = e.getHeaders().get("retry-after");
+        if (retryAfter instanceof List && !((List<?>) retryAfter).isEmpty()) {
+            retryAfter = ((List<?>) retryAfter).get(0);
+        }
+        try {
+            return retryAfter == null ? 0 : TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.toString().trim()));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static UrlResponse failed(Exception e) {
+
+        UrlResponse response = new UrlResponse();
+        response.exception = e;
+        return response;
+    }
+}
@@ -0,0 +1,47 @@
+package functions;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CircuitBreakerTest {
+
+    @Test
+    @DisplayName("Breaker opens at the failure rate and lets one probe through after the open interval")
+    void opens_and_probes() throws InterruptedException {
+
+        CircuitBreaker breaker = new CircuitBreaker(50, 100, 10_000, 2, 10_000, 50);
+        breaker.record(true, 0);
+        assertFalse(breaker.isOpen());
+        breaker.record(true, 0);
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.tryAcquire());
+
+        Thread.sleep(60);
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        breaker.record(false, 0);
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    @DisplayName("Slow calls open the breaker and a failed probe keeps it open")
+    void slow_calls_open() throws InterruptedException {
+
+        CircuitBreaker breaker = new CircuitBreaker(50, 100, 10, 2, 10_000, 50);
+        long slow = TimeUnit.MILLISECONDS.toNanos(20);
+        breaker.record(false, slow);
+        breaker.record(false, slow);
+        assertTrue(breaker.isOpen());
+
+        Thread.sleep(60);
+        assertTrue(breaker.tryAcquire());
+        breaker.record(true, 0);
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.tryAcquire());
+    }
+}
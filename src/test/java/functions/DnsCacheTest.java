@@ -0,0 +1,36 @@
+package functions;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DnsCacheTest {
+
+    @Test
+    @DisplayName("DNS lookups are cached, including failures")
+    void dns_lookups_cached() throws Exception {
+
+        AtomicInteger lookups = new AtomicInteger();
+        DnsCache cache = new DnsCache(host -> {
+            lookups.incrementAndGet();
+            if (host.equals("missing.example")) {
+                throw new UnknownHostException(host);
+            }
+            return new InetAddress[] {InetAddress.getByAddress(host, new byte[] {10, 0, 0, 1})};
+        }, 16, 60_000, 60_000, 100, 0);
+
+        assertEquals("10.0.0.1", cache.resolve("api.example")[0].getHostAddress());
+        assertEquals("10.0.0.1", cache.resolve("API.example")[0].getHostAddress());
+        assertThrows(UnknownHostException.class, () -> cache.resolve("missing.example"));
+        assertThrows(UnknownHostException.class, () -> cache.resolve("missing.example"));
+
+        assertEquals(2, lookups.get());
+        assertEquals(2, cache.hits());
+        assertEquals(2, cache.misses());
+    }
+}
@@ -0,0 +1,20 @@
+package functions;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IdempotencyCacheTest {
+
+    @Test
+    @DisplayName("Idempotency keys in flight are capped")
+    void idempotency_pending_claims_capped() {
+
+        IdempotencyCache cache = new IdempotencyCache(2, 1024, 60_000);
+        assertNotNull(cache.claim("a"));
+        assertNotNull(cache.claim("b"));
+        assertNull(cache.claim("c"));
+        assertFalse(cache.claim("a").isLeader());
+    }
+}
@@ -0,0 +1,57 @@
+package functions;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JournalTest {
+
+    @Test
+    @DisplayName("Pending records survive a reopen and done segments are deleted")
+    void records_survive_reopen(@TempDir File directory) throws IOException {
+
+        Journal journal = new Journal(directory, 64, false);
+        long first = journal.append("first".getBytes());
+        long second = journal.append(new byte[100]);
+        long third = journal.append("third".getBytes());
+        journal.markDone(second);
+
+        Journal reopened = new Journal(directory, 64, false);
+        assertEquals(List.of(first, third), reopened.pending());
+        assertArrayEquals("third".getBytes(), reopened.read(third));
+        assertEquals(2, reopened.segmentCount());
+    }
+
+    @Test
+    @DisplayName("Stray files in the journal directory are skipped")
+    void stray_segment_skipped(@TempDir File directory) throws IOException {
+
+        Files.write(new File(directory, "backup.seg").toPath(), new byte[16]);
+        Journal journal = new Journal(directory, 64, false);
+        long id = journal.append("payload".getBytes());
+
+        assertEquals(List.of(id), new Journal(directory, 64, false).pending());
+    }
+
+    @Test
+    @DisplayName("Only positions of pending records are reported as pending")
+    void pending_position_checked(@TempDir File directory) throws IOException {
+
+        Journal journal = new Journal(directory, 64, false);
+        long id = journal.append("payload".getBytes());
+
+        assertTrue(journal.isPending(id));
+        assertFalse(journal.isPending(id + 1));
+        assertFalse(journal.isPending(id + (5L << 32)));
+        assertFalse(journal.isPending(-1));
+        journal.markDone(id);
+        assertFalse(journal.isPending(id));
+    }
+}
@@ -0,0 +1,88 @@
+package functions;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LaneTest {
+
+    @Test
+    @DisplayName("Busy lane serves tenants round-robin and refuses calls beyond its queue")
+    void lane_shares_slots_between_tenants() throws Exception {
+
+        Lane lane = new Lane(new Lane.Group(1), "test", 1, 6, 1024);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(6);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Executors.newSingleThreadExecutor().execute(() -> lane.submit("bulk", 1024, () -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        while (lane.inFlight() == 0) {
+            Thread.sleep(5);
+        }
+
+        for (String tenant : new String[] {"bulk", "bulk", "bulk", "bulk", "alerts", "alerts"}) {
+            assertTrue(lane.submit(tenant, 1024, () -> {
+                order.add(tenant);
+                done.countDown();
+            }));
+        }
+        assertFalse(lane.submit("alerts", 1024, () -> order.add("refused")));
+        assertEquals(6, lane.queued());
+
+        blocker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("bulk", "alerts", "bulk", "alerts", "bulk", "bulk"), order);
+        assertEquals(0, lane.queued());
+    }
+
+    @Test
+    @DisplayName("Freed slots go to the priority lanes by weight")
+    void lanes_share_slots_by_priority() throws Exception {
+
+        Lane.Group group = new Lane.Group(1);
+        Lane high = new Lane(group, "high", 4, 10, 1024);
+        Lane low = new Lane(group, "low", 1, 10, 1024);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(8);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Executors.newSingleThreadExecutor().execute(() -> low.submit(null, 1024, () -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        while (low.inFlight() == 0) {
+            Thread.sleep(5);
+        }
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(low.submit(null, 1024, () -> {
+                order.add("low");
+                done.countDown();
+            }));
+            assertTrue(high.submit(null, 1024, () -> {
+                order.add("high");
+                done.countDown();
+            }));
+        }
+        assertEquals(0, high.inFlight());
+
+        blocker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("high", "high", "low", "high", "high", "low", "low", "low"), order);
+    }
+}
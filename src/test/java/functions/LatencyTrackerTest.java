@@ -0,0 +1,38 @@
+package functions;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class LatencyTrackerTest {
+
+    @Test
+    @DisplayName("Latency percentiles follow every sample until the window is full")
+    void percentiles_follow_warm_up() {
+
+        LatencyTracker tracker = new LatencyTracker(32, 4);
+        assertEquals(-1, tracker.percentileMillis(0.99));
+        for (int i = 0; i < 4; i++) {
+            tracker.record(10_000_000L);
+        }
+        assertEquals(10, tracker.percentileMillis(0.99));
+        tracker.record(100_000_000L);
+        assertEquals(100, tracker.percentileMillis(0.99));
+    }
+
+    @Test
+    @DisplayName("Latency percentiles of a full window are re-sorted only every few samples")
+    void percentiles_refreshed_in_steps() {
+
+        LatencyTracker tracker = new LatencyTracker(32, 4);
+        for (int i = 0; i < 32; i++) {
+            tracker.record(10_000_000L);
+        }
+        assertEquals(10, tracker.percentileMillis(0.99));
+        tracker.record(100_000_000L);
+        assertEquals(10, tracker.percentileMillis(0.99));
+        tracker.record(100_000_000L);
+        assertEquals(100, tracker.percentileMillis(0.99));
+    }
+}
@@ -0,0 +1,28 @@
+package functions;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class MetricsTest {
+
+    @Test
+    @DisplayName("Proxy rejections are classified by what refused the call")
+    void rejection_outcomes() {
+
+        assertEquals("bulkhead_rejected", Metrics.outcome(rejected(429, "bulkhead")));
+        assertEquals("circuit_open", Metrics.outcome(rejected(503, "circuit")));
+        assertEquals("lane_rejected", Metrics.outcome(rejected(503, "lane")));
+        UrlResponse rateLimited = new UrlResponse();
+        rateLimited.exception = new RateLimitedException("Rate limit exceeded");
+        assertEquals("rate_limited", Metrics.outcome(rateLimited));
+    }
+
+    private static UrlResponse rejected(int status, String reason) {
+
+        UrlResponse response = new UrlResponse();
+        response.exception = new DestinationRejectedException(status, reason, "Rejected");
+        return response;
+    }
+}
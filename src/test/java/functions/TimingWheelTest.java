@@ -0,0 +1,32 @@
+package functions;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimingWheelTest {
+
+    @Test
+    @DisplayName("Timing wheel fires entries on their tick, across rotations")
+    void entries_fire_on_their_tick() {
+
+        TimingWheel wheel = new TimingWheel(0, 10, 4, 1);
+        wheel.schedule(1, 5);
+        wheel.schedule(3, 95);
+        wheel.schedule(4, 1000);
+
+        List<Long> fired = new ArrayList<>();
+        wheel.advance(9, fired::add);
+        assertEquals(List.of(), fired);
+        wheel.advance(100, fired::add);
+        assertEquals(List.of(1L, 3L), fired);
+        assertEquals(1, wheel.size());
+        wheel.advance(1000, fired::add);
+        assertEquals(List.of(1L, 3L, 4L), fired);
+        assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,36 @@
+package functions;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenBucketTest {
+
+    @Test
+    @DisplayName("Burst is admitted at once and later calls are given their wait")
+    void burst_then_paced() {
+
+        TokenBucket bucket = new TokenBucket(new RateLimit(1, 2));
+        assertEquals(0, bucket.reserve(0));
+        assertEquals(0, bucket.reserve(0));
+        assertEquals(-1, bucket.reserve(0));
+
+        long wait = bucket.reserve(TimeUnit.SECONDS.toNanos(2));
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(900) && wait <= TimeUnit.SECONDS.toNanos(1), "wait " + wait);
+        assertEquals(-1, bucket.reserve(TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    @Test
+    @DisplayName("Pause holds back calls that would otherwise be admitted")
+    void pause_holds_back_calls() {
+
+        TokenBucket bucket = new TokenBucket(new RateLimit(1000, 5));
+        bucket.pause(TimeUnit.SECONDS.toNanos(1));
+
+        assertEquals(-1, bucket.reserve(0));
+        assertTrue(bucket.reserve(TimeUnit.SECONDS.toNanos(2)) > TimeUnit.MILLISECONDS.toNanos(900));
+    }
+}
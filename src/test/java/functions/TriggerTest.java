@@ -3,17 +3,22 @@ package functions;
 import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.client.WireMock;
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.extension.responsetemplating.ResponseTemplateTransformer;
 import com.github.tomakehurst.wiremock.http.Fault;
 import com.github.tomakehurst.wiremock.matching.RequestPatternBuilder;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 import com.google.cloud.functions.HttpRequest;
 import com.google.cloud.functions.HttpResponse;
 import com.google.gson.Gson;
+import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -21,7 +26,9 @@ import javax.net.ssl.SSLException;
 import java.io.*;
 import java.lang.reflect.Method;
 import java.util.Base64;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -39,6 +46,18 @@ public class TriggerTest {
 
     private Trigger trigger;
     private StringWriter stringWriter;
+    private ByteArrayOutputStream outputStream;
+
+    @TempDir
+    static File stateDir;
+
+    @BeforeAll
+    static void useTemporaryState() {
+
+        System.setProperty("JOURNAL_DIR", new File(stateDir, "journal").getPath());
+        System.setProperty("SCHEDULE_DIR", new File(stateDir, "schedule").getPath());
+        System.setProperty("DEAD_LETTER_DIR", new File(stateDir, "dead-letters").getPath());
+    }
 
     @BeforeEach
     void setUp() throws IOException {
@@ -50,10 +69,12 @@ public class TriggerTest {
 
         stringWriter = new StringWriter();
         BufferedWriter writer = new BufferedWriter(stringWriter);
+        outputStream = new ByteArrayOutputStream();
         trigger = new Trigger();
 
         when(httpRequest.getMethod()).thenReturn("POST");
         when(httpResponse.getWriter()).thenReturn(writer);
+        when(httpResponse.getOutputStream()).thenReturn(outputStream);
     }
 
     @Test
@@ -68,7 +89,7 @@ public class TriggerTest {
 
         assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
         verify(httpResponse).setStatusCode(200);
-        assertEquals("<html><body>Successful response</body></html>", stringWriter.toString());
+        assertEquals("<html><body>Successful response</body></html>", outputStream.toString());
         WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/")));
     }
 
@@ -181,7 +202,7 @@ public class TriggerTest {
 
         assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
         verify(httpResponse).setStatusCode(500);
-        assertEquals("Http request failed: Premature EOF", stringWriter.toString());
+        assertTrue(stringWriter.toString().startsWith("Http request failed: Bad chunk header"));
     }
 
     @Test
@@ -369,6 +390,1220 @@ public class TriggerTest {
         WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/throw-exception")));
     }
 
+    @Test
+    @DisplayName("Consecutive requests share the pooled transport")
+    void requests_share_pooled_transport() throws Exception {
+
+        assertSame(TransportRegistry.requestFactory(), TransportRegistry.requestFactory());
+
+        for (int i = 0; i < 3; i++) {
+            when(httpResponse.getWriter()).thenReturn(new BufferedWriter(new StringWriter()));
+            when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                    "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                    "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\"}")));
+            assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        }
+        verify(httpResponse, times(3)).setStatusCode(200);
+        WireMock.verify(3, WireMock.postRequestedFor(WireMock.urlEqualTo("/")));
+    }
+
+    @Test
+    @DisplayName("Large upstream response is relayed byte-for-byte")
+    void large_response_relayed() throws IOException {
+
+        byte[] payload = new byte[100_000];
+        new java.util.Random(7).nextBytes(payload);
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo("/large"))
+                .willReturn(WireMock.aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/octet-stream")
+                        .withBody(payload)));
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/large\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\"}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(200);
+        verify(httpResponse).setContentType("application/octet-stream");
+        assertArrayEquals(payload, outputStream.toByteArray());
+    }
+
+    @Test
+    @DisplayName("Upstream response above the relay cap is rejected")
+    void response_above_relay_cap() throws IOException {
+
+        System.setProperty("RELAY_MAX_BYTES", "10");
+        try {
+            when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                    "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                    "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\"}")));
+
+            assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+            verify(httpResponse).setStatusCode(500);
+            assertEquals("Http request failed: Response exceeds 10 bytes", stringWriter.toString());
+            assertEquals(0, outputStream.size());
+        } finally {
+            System.clearProperty("RELAY_MAX_BYTES");
+        }
+    }
+
+    @Test
+    @DisplayName("Binary body is forwarded unchanged")
+    void binary_body_forwarded() throws IOException {
+
+        byte[] body = {(byte) 0xff, 0x00, (byte) 0xc3, 0x28, 0x0a, (byte) 0x80};
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                "\"body\": \"" + Base64.getEncoder().encodeToString(body) + "\"}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(200);
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/"))
+                .withRequestBody(WireMock.binaryEqualTo(body)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {3 * 1024 * 1024, 3 * 1024 * 1024 + 7, 3 * 1024 * 1024 + 8})
+    @DisplayName("Large body is decoded while streaming it upstream, with or without base64 padding")
+    void large_body_streamed(int size) throws IOException {
+
+        byte[] body = new byte[size];
+        new java.util.Random(42).nextBytes(body);
+        String envelope = "{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                "\"headers\":{\"Content-Type\": \"application/octet-stream\"}, " +
+                "\"options\": {\"timeout\": 30}, " +
+                "\"body\": \"" + Base64.getEncoder().encodeToString(body) + "\"}";
+        when(httpRequest.getContentLength()).thenReturn((long) envelope.length());
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader(envelope)));
+
+        System.setProperty("STREAM_BODY_MIN_BYTES", String.valueOf(1024 * 1024));
+        try {
+            assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        } finally {
+            System.clearProperty("STREAM_BODY_MIN_BYTES");
+        }
+        verify(httpResponse).setStatusCode(200);
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/"))
+                .withHeader("Transfer-Encoding", WireMock.equalTo("chunked"))
+                .withRequestBody(WireMock.binaryEqualTo(body)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"YWJj", "YWI=", "YQ=="})
+    @DisplayName("Short streamed bodies are decoded with any amount of padding")
+    void short_body_streamed(String base64) throws IOException {
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                "\"body\": \"" + base64 + "\"}")));
+
+        System.setProperty("STREAM_BODY_MIN_BYTES", "0");
+        try {
+            assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        } finally {
+            System.clearProperty("STREAM_BODY_MIN_BYTES");
+        }
+        verify(httpResponse).setStatusCode(200);
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/"))
+                .withRequestBody(WireMock.binaryEqualTo(Base64.getDecoder().decode(base64))));
+    }
+
+    @Test
+    @DisplayName("Streamed body must be the last envelope field")
+    void streamed_body_not_last() throws IOException {
+
+        System.setProperty("STREAM_BODY_MIN_BYTES", "0");
+        try {
+            when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                    "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                    "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                    "\"options\": {\"timeout\": 30}}")));
+
+            assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+            verify(httpResponse).setStatusCode(400);
+            assertTrue(stringWriter.toString().startsWith("Http request failed: Invalid Request Body"));
+        } finally {
+            System.clearProperty("STREAM_BODY_MIN_BYTES");
+        }
+    }
+
+    @Test
+    @DisplayName("Validation errors are reported independently of field order")
+    void validation_error_order() throws IOException {
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"options\": {\"timeout\": \"Invalid\"}, " +
+                "\"headers\": \"Invalid header\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\"}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(500);
+        assertEquals("Http request failed: Url is missing", stringWriter.toString());
+    }
+
+    @Test
+    @DisplayName("Batch request returns one result per envelope")
+    void batch_request() throws IOException {
+
+        when(httpRequest.getPath()).thenReturn("/batch");
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("[" +
+                "{\"url\":\""+wireMockServer.baseUrl()+"\", \"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\"}, " +
+                "{\"url\":\""+wireMockServer.baseUrl()+"/throw-exception\", \"body\": \"e30=\"}, " +
+                "{\"url\":\"invalid url\", \"body\": \"e30=\"}]")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(200);
+
+        com.google.gson.JsonArray results = com.google.gson.JsonParser.parseString(stringWriter.toString()).getAsJsonArray();
+        assertEquals(3, results.size());
+        assertEquals(200, results.get(0).getAsJsonObject().get("status").getAsInt());
+        assertFalse(results.get(0).getAsJsonObject().has("error"));
+        assertEquals(500, results.get(1).getAsJsonObject().get("status").getAsInt());
+        assertTrue(results.get(1).getAsJsonObject().get("error").getAsString().startsWith("500 Server Error"));
+        assertEquals("Invalid Request Url", results.get(2).getAsJsonObject().get("error").getAsString());
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/")));
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/throw-exception")));
+    }
+
+    @Test
+    @DisplayName("Batch honours scheduled and async items and rejects idempotency keys")
+    void batch_request_with_options() throws Exception {
+
+        when(httpRequest.getPath()).thenReturn("/batch");
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("[" +
+                "{\"url\":\""+wireMockServer.baseUrl()+"/batch-async\", \"body\": \"e30=\", \"options\": {\"async\": true}}, " +
+                "{\"url\":\""+wireMockServer.baseUrl()+"/batch-delayed\", \"body\": \"e30=\", \"options\": {\"delayMs\": 60000}}, " +
+                "{\"url\":\""+wireMockServer.baseUrl()+"/batch-keyed\", \"body\": \"e30=\", \"options\": {\"idempotencyKey\": \"batch-key\"}}]")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(200);
+
+        com.google.gson.JsonArray results = com.google.gson.JsonParser.parseString(stringWriter.toString()).getAsJsonArray();
+        assertEquals(3, results.size());
+        assertEquals(202, results.get(0).getAsJsonObject().get("status").getAsInt());
+        assertTrue(results.get(0).getAsJsonObject().has("id"));
+        assertEquals(202, results.get(1).getAsJsonObject().get("status").getAsInt());
+        assertTrue(results.get(1).getAsJsonObject().has("id"));
+        assertEquals(400, results.get(2).getAsJsonObject().get("status").getAsInt());
+        awaitRequests(WireMock.postRequestedFor(WireMock.urlEqualTo("/batch-async")), 1);
+        WireMock.verify(0, WireMock.postRequestedFor(WireMock.urlEqualTo("/batch-delayed")));
+        WireMock.verify(0, WireMock.postRequestedFor(WireMock.urlEqualTo("/batch-keyed")));
+    }
+
+    @Test
+    @DisplayName("Async request is accepted and delivered in the background")
+    void async_request() throws Exception {
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"async\": true}}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(202);
+        assertTrue(stringWriter.toString().matches("\\{\"id\":\"\\d+\"}"));
+        awaitRequests(WireMock.postRequestedFor(WireMock.urlEqualTo("/")), 1);
+    }
+
+    @Test
+    @DisplayName("Pending async deliveries survive a restart")
+    void async_journal_survives_restart(@TempDir File journalDir) throws Exception {
+
+        Webhook webhook = new Webhook();
+        webhook.setUrl(wireMockServer.baseUrl());
+        webhook.setBody("{}".getBytes());
+
+        AsyncDelivery stopped = new AsyncDelivery(new Journal(journalDir, 4096, false), new WebhookSender(), 0);
+        stopped.accept(webhook);
+        stopped.accept(webhook);
+        assertEquals(2, stopped.backlog());
+
+        new AsyncDelivery(new Journal(journalDir, 4096, false), new WebhookSender(), 1);
+        awaitRequests(WireMock.postRequestedFor(WireMock.urlEqualTo("/")).withRequestBody(WireMock.equalTo("{}")), 2);
+    }
+
+    @Test
+    @DisplayName("Delayed request is accepted and delivered once due")
+    void delayed_request() throws Exception {
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/delayed\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"delayMs\": 300}}")));
+
+        long start = System.currentTimeMillis();
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(202);
+        assertTrue(stringWriter.toString().matches("\\{\"id\":\"\\d+\"}"));
+        assertEquals(0, WireMock.findAll(WireMock.postRequestedFor(WireMock.urlEqualTo("/delayed"))).size());
+        awaitRequests(WireMock.postRequestedFor(WireMock.urlEqualTo("/delayed")), 1);
+        assertTrue(System.currentTimeMillis() - start >= 300);
+    }
+
+    @Test
+    @DisplayName("Scheduled delivery is cancelled by its id")
+    void scheduled_delivery_cancelled() throws Exception {
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/cancelled\", " +
+                "\"body\": \"e30=\", " +
+                "\"options\": {\"delayMs\": 300}}")));
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(202);
+        String id = stringWriter.toString().replaceAll("\\D", "");
+
+        System.setProperty("SCHEDULE_TOKEN", "schedule-secret");
+        try {
+            cancelScheduled(id, "Bearer wrong", 401);
+            cancelScheduled(id, "Bearer schedule-secret", 204);
+            cancelScheduled(id, "Bearer schedule-secret", 404);
+            cancelScheduled("not-an-id", "Bearer schedule-secret", 500);
+        } finally {
+            System.clearProperty("SCHEDULE_TOKEN");
+        }
+        Thread.sleep(800);
+        assertEquals(0, WireMock.findAll(WireMock.postRequestedFor(WireMock.urlEqualTo("/cancelled"))).size());
+    }
+
+    private void cancelScheduled(String id, String authorization, int expectedStatus) throws IOException {
+
+        HttpRequest cancelRequest = mock(HttpRequest.class);
+        when(cancelRequest.getMethod()).thenReturn("DELETE");
+        when(cancelRequest.getPath()).thenReturn("/scheduled");
+        when(cancelRequest.getFirstHeader("Authorization")).thenReturn(Optional.of(authorization));
+        when(cancelRequest.getQueryParameters()).thenReturn(Map.of("id", List.of(id)));
+        HttpResponse cancelResponse = mock(HttpResponse.class);
+        when(cancelResponse.getWriter()).thenReturn(new BufferedWriter(new StringWriter()));
+
+        assertDoesNotThrow(() -> trigger.service(cancelRequest, cancelResponse));
+        verify(cancelResponse).setStatusCode(expectedStatus);
+    }
+
+    @Test
+    @DisplayName("Pending scheduled deliveries survive a restart")
+    void schedule_survives_restart(@TempDir File scheduleDir, @TempDir File journalDir) throws Exception {
+
+        Webhook webhook = new Webhook();
+        webhook.setUrl(wireMockServer.baseUrl());
+        webhook.setBody("{}".getBytes());
+        webhook.setDeliverAt(System.currentTimeMillis() + 500);
+
+        AsyncDelivery async = new AsyncDelivery(new Journal(journalDir, 4096, false), new WebhookSender(), 1);
+        ScheduledDelivery stopped = new ScheduledDelivery(new Journal(scheduleDir, 4096, false), async, 60_000, 8);
+        stopped.accept(webhook);
+        stopped.accept(webhook);
+        assertEquals(2, stopped.pending());
+
+        ScheduledDelivery restarted = new ScheduledDelivery(new Journal(scheduleDir, 4096, false), async, 10, 8);
+        assertEquals(2, restarted.pending());
+        awaitRequests(WireMock.postRequestedFor(WireMock.urlEqualTo("/")).withRequestBody(WireMock.equalTo("{}")), 2);
+    }
+
+    @Test
+    @DisplayName("Failed delivery is listed in the dead-letter log")
+    void dead_letter_listed() throws IOException {
+
+        String failing = "{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/throw-exception\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\"}";
+        System.setProperty("DEAD_LETTER_TOKEN", "replay-secret");
+        try {
+            assertDoesNotThrow(() -> trigger.service(newRequest(failing), httpResponse));
+            assertEquals("[]", listDeadLetters("Bearer replay-secret", 200));
+
+            System.setProperty("DEAD_LETTER_SYNC", "true");
+            stringWriter = new StringWriter();
+            when(httpResponse.getWriter()).thenReturn(new BufferedWriter(stringWriter));
+            assertDoesNotThrow(() -> trigger.service(newRequest(failing), httpResponse));
+            verify(httpResponse, times(2)).setStatusCode(500);
+            String listed = listDeadLetters("Bearer replay-secret", 200);
+            assertTrue(listed.contains("\"destination\":\"localhost:" + wireMockServer.port() + "\",\"failedAt\":"));
+            assertTrue(listed.contains("\"status\":500}"));
+
+            assertEquals("Http request failed: Unauthorized", listDeadLetters("Bearer wrong", 401));
+        } finally {
+            System.clearProperty("DEAD_LETTER_TOKEN");
+            System.clearProperty("DEAD_LETTER_SYNC");
+        }
+    }
+
+    private String listDeadLetters(String authorization, int expectedStatus) throws IOException {
+
+        HttpRequest listRequest = mock(HttpRequest.class);
+        when(listRequest.getMethod()).thenReturn("GET");
+        when(listRequest.getPath()).thenReturn("/dead-letters");
+        when(listRequest.getFirstHeader("Authorization")).thenReturn(Optional.of(authorization));
+        when(listRequest.getQueryParameters()).thenReturn(
+                Map.of("destination", List.of("localhost:" + wireMockServer.port())));
+        HttpResponse listResponse = mock(HttpResponse.class);
+        StringWriter listed = new StringWriter();
+        when(listResponse.getWriter()).thenReturn(new BufferedWriter(listed));
+
+        assertDoesNotThrow(() -> trigger.service(listRequest, listResponse));
+        verify(listResponse).setStatusCode(expectedStatus);
+        return listed.toString();
+    }
+
+    @Test
+    @DisplayName("Dead letters survive a restart and are removed once replayed")
+    void dead_letter_replayed(@TempDir File deadLetterDir) throws Exception {
+
+        Webhook webhook = new Webhook();
+        webhook.setUrl(wireMockServer.baseUrl());
+        webhook.setBody("{}".getBytes());
+        String host = "localhost:" + wireMockServer.port();
+
+        DeadLetterLog stopped = new DeadLetterLog(new Journal(deadLetterDir, 4096, false));
+        stopped.record(webhook, host, 503, 1_000);
+        stopped.record(webhook, host, 503, 2_000);
+        stopped.record(webhook, "other:80", 503, 1_500);
+
+        DeadLetterLog log = new DeadLetterLog(new Journal(deadLetterDir, 4096, false));
+        assertEquals(3, log.size());
+        assertEquals(1, log.find(host, 1_500, 3_000, 10).size());
+
+        List<DeadLetterLog.Entry> entries = log.find(host, 0, Long.MAX_VALUE, 10);
+        assertEquals(2, DeadLetterReplay.replay(log, new WebhookSender(), entries, 50));
+        awaitRequests(WireMock.postRequestedFor(WireMock.urlEqualTo("/")).withRequestBody(WireMock.equalTo("{}")), 2);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (log.size() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, log.size());
+        assertEquals("other:80", log.find(null, 0, Long.MAX_VALUE, 10).get(0).host);
+    }
+
+    @Test
+    @DisplayName("Circuit opens after failures and closes after a successful probe")
+    void circuit_breaker_opens_and_recovers() throws Exception {
+
+        System.setProperty("CIRCUIT_MINIMUM_CALLS", "2");
+        System.setProperty("CIRCUIT_OPEN_MS", "200");
+        try {
+            for (int i = 0; i < 3; i++) {
+                stringWriter = new StringWriter();
+                when(httpResponse.getWriter()).thenReturn(new BufferedWriter(stringWriter));
+                when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                        "\"url\":\""+wireMockServer.baseUrl()+"/throw-exception\", " +
+                        "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\"}")));
+                trigger.service(httpRequest, httpResponse);
+            }
+            verify(httpResponse).setStatusCode(503);
+            assertEquals("Http request failed: Circuit open for localhost:" + wireMockServer.port(),
+                    stringWriter.toString());
+            verify(httpResponse).appendHeader("X-Proxy-Rejected", "circuit");
+            WireMock.verify(2, WireMock.postRequestedFor(WireMock.urlEqualTo("/throw-exception")));
+
+            Thread.sleep(250);
+            when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                    "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                    "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\"}")));
+            trigger.service(httpRequest, httpResponse);
+            verify(httpResponse).setStatusCode(200);
+            assertFalse(Destination.of(wireMockServer.baseUrl()).isCircuitOpen());
+        } finally {
+            System.clearProperty("CIRCUIT_MINIMUM_CALLS");
+            System.clearProperty("CIRCUIT_OPEN_MS");
+        }
+    }
+
+    @Test
+    @DisplayName("Retryable status is retried with backoff until it succeeds")
+    void retry_until_success() throws IOException {
+
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo("/flaky")).inScenario("flaky")
+                .whenScenarioStateIs(com.github.tomakehurst.wiremock.stubbing.Scenario.STARTED)
+                .willReturn(WireMock.aResponse().withStatus(503))
+                .willSetStateTo("recovered"));
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo("/flaky")).inScenario("flaky")
+                .whenScenarioStateIs("recovered")
+                .willReturn(WireMock.aResponse().withStatus(200).withBody("recovered")));
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/flaky\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"retry\": {\"maxAttempts\": 3, \"initialBackoffMs\": 10, \"retryOn\": [503]}}}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(200);
+        assertEquals("recovered", outputStream.toString());
+        WireMock.verify(2, WireMock.postRequestedFor(WireMock.urlEqualTo("/flaky")));
+    }
+
+    @Test
+    @DisplayName("Non-retryable status is returned after a single attempt")
+    void retry_skips_non_retryable_status() throws IOException {
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/throw-exception\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"retry\": 3}}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(500);
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/throw-exception")));
+    }
+
+    @Test
+    @DisplayName("Request with invalid retry option")
+    void request_with_invalid_retry() throws IOException {
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"retry\": {\"maxAttempts\": 50}}}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(500);
+        assertEquals("Http request failed: Invalid Retry Value", stringWriter.toString());
+    }
+
+    @Test
+    @DisplayName("Duplicate idempotency key is answered from the cache")
+    void idempotent_duplicate_served_from_cache() throws IOException {
+
+        String envelope = "{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"idempotencyKey\": \"order-42\"}}";
+
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            HttpRequest request = newRequest(envelope);
+            HttpResponse response = mock(HttpResponse.class);
+            when(response.getOutputStream()).thenReturn(body);
+
+            assertDoesNotThrow(() -> trigger.service(request, response));
+            verify(response).setStatusCode(200);
+            assertEquals("<html><body>Successful response</body></html>", body.toString());
+        }
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/")));
+    }
+
+    @Test
+    @DisplayName("Duplicate of a 4xx response is answered from the cache")
+    void idempotent_duplicate_of_client_error() throws IOException {
+
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo("/conflict"))
+                .willReturn(WireMock.aResponse().withStatus(409).withBody("already exists")));
+        String envelope = "{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/conflict\", " +
+                "\"body\": \"e30=\", " +
+                "\"options\": {\"idempotencyKey\": \"order-45\"}}";
+
+        for (int i = 0; i < 2; i++) {
+            HttpResponse response = mock(HttpResponse.class);
+            when(response.getWriter()).thenReturn(new BufferedWriter(new StringWriter()));
+
+            assertDoesNotThrow(() -> trigger.service(newRequest(envelope), response));
+            verify(response).setStatusCode(409);
+        }
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/conflict")));
+    }
+
+    @Test
+    @DisplayName("Duplicate of a response too large to keep is not delivered again")
+    void idempotent_duplicate_of_large_response() throws IOException {
+
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo("/large-receipt"))
+                .willReturn(WireMock.aResponse().withStatus(201).withBody("a receipt longer than the limit")));
+        String envelope = "{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/large-receipt\", " +
+                "\"body\": \"e30=\", " +
+                "\"options\": {\"idempotencyKey\": \"order-44\"}}";
+
+        System.setProperty("IDEMPOTENCY_MAX_BODY_BYTES", "8");
+        try {
+            for (int i = 0; i < 2; i++) {
+                HttpResponse response = mock(HttpResponse.class);
+                when(response.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+
+                assertDoesNotThrow(() -> trigger.service(newRequest(envelope), response));
+                verify(response).setStatusCode(201);
+            }
+        } finally {
+            System.clearProperty("IDEMPOTENCY_MAX_BODY_BYTES");
+        }
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/large-receipt")));
+    }
+
+    @Test
+    @DisplayName("Request method is taken from options")
+    void request_with_method_option() throws IOException {
+
+        WireMock.stubFor(WireMock.put(WireMock.urlEqualTo("/resource"))
+                .willReturn(WireMock.aResponse().withStatus(204)));
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/resource\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"method\": \"put\"}}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(204);
+        WireMock.verify(1, WireMock.putRequestedFor(WireMock.urlEqualTo("/resource")));
+    }
+
+    @Test
+    @DisplayName("Fresh GET responses are served from the cache")
+    void get_served_from_cache() throws IOException {
+
+        WireMock.stubFor(WireMock.get(WireMock.urlEqualTo("/status/fresh"))
+                .willReturn(WireMock.aResponse().withStatus(200)
+                        .withHeader("Cache-Control", "max-age=60").withBody("pending")));
+        String envelope = "{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/status/fresh\", " +
+                "\"body\": \"\", " +
+                "\"options\": {\"method\": \"GET\"}}";
+
+        for (int i = 0; i < 3; i++) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            HttpResponse response = mock(HttpResponse.class);
+            when(response.getOutputStream()).thenReturn(body);
+
+            assertDoesNotThrow(() -> trigger.service(newRequest(envelope), response));
+            verify(response).setStatusCode(200);
+            assertEquals("pending", body.toString());
+        }
+        WireMock.verify(1, WireMock.getRequestedFor(WireMock.urlEqualTo("/status/fresh")));
+    }
+
+    @Test
+    @DisplayName("Stale GET responses are revalidated with the ETag")
+    void get_revalidated_with_etag() throws IOException {
+
+        WireMock.stubFor(WireMock.get(WireMock.urlEqualTo("/status/etag"))
+                .willReturn(WireMock.aResponse().withStatus(200)
+                        .withHeader("Cache-Control", "no-cache").withHeader("ETag", "\"v1\"").withBody("done")));
+        WireMock.stubFor(WireMock.get(WireMock.urlEqualTo("/status/etag"))
+                .withHeader("If-None-Match", WireMock.equalTo("\"v1\""))
+                .willReturn(WireMock.aResponse().withStatus(304).withHeader("ETag", "\"v1\"")));
+        String envelope = "{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/status/etag\", " +
+                "\"body\": \"\", " +
+                "\"options\": {\"method\": \"GET\"}}";
+
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            HttpResponse response = mock(HttpResponse.class);
+            when(response.getOutputStream()).thenReturn(body);
+
+            assertDoesNotThrow(() -> trigger.service(newRequest(envelope), response));
+            verify(response).setStatusCode(200);
+            assertEquals("done", body.toString());
+        }
+        WireMock.verify(2, WireMock.getRequestedFor(WireMock.urlEqualTo("/status/etag")));
+        WireMock.verify(1, WireMock.getRequestedFor(WireMock.urlEqualTo("/status/etag"))
+                .withHeader("If-None-Match", WireMock.equalTo("\"v1\"")));
+    }
+
+    @Test
+    @DisplayName("Concurrent duplicates wait for the in-flight call")
+    void idempotent_concurrent_duplicates_share_call() throws Exception {
+
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo("/slow"))
+                .willReturn(WireMock.aResponse().withStatus(200).withBody("slow").withFixedDelay(300)));
+        String envelope = "{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/slow\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"idempotencyKey\": \"order-43\"}}";
+
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(4);
+        List<java.util.concurrent.Future<String>> results = new java.util.ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(() -> {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                HttpResponse response = mock(HttpResponse.class);
+                when(response.getOutputStream()).thenReturn(body);
+                trigger.service(newRequest(envelope), response);
+                return body.toString();
+            }));
+        }
+        for (java.util.concurrent.Future<String> result : results) {
+            assertEquals("slow", result.get(5, java.util.concurrent.TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/slow")));
+    }
+
+    @Test
+    @DisplayName("Identical concurrent requests share one upstream call")
+    void coalesced_identical_requests_share_call() throws Exception {
+
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo("/fan-out"))
+                .willReturn(WireMock.aResponse().withStatus(200).withBody("{{request.body}}")
+                        .withTransformers("response-template").withFixedDelay(300)));
+        String envelope = "{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/fan-out\", " +
+                "\"body\": \"" + Base64.getEncoder().encodeToString("same".getBytes()) + "\", " +
+                "\"options\": {\"coalesce\": true}}";
+        String other = envelope.replace(Base64.getEncoder().encodeToString("same".getBytes()),
+                Base64.getEncoder().encodeToString("other".getBytes()));
+
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(5);
+        List<java.util.concurrent.Future<String>> results = new java.util.ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            String request = i == 4 ? other : envelope;
+            results.add(executor.submit(() -> {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                HttpResponse response = mock(HttpResponse.class);
+                when(response.getOutputStream()).thenReturn(body);
+                trigger.service(newRequest(request), response);
+                return body.toString();
+            }));
+        }
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i == 4 ? "other" : "same", results.get(i).get(5, java.util.concurrent.TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        WireMock.verify(2, WireMock.postRequestedFor(WireMock.urlEqualTo("/fan-out")));
+        assertEquals(0, SingleFlight.get().size());
+
+        HttpResponse response = mock(HttpResponse.class);
+        when(response.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        trigger.service(newRequest(envelope), response);
+        WireMock.verify(3, WireMock.postRequestedFor(WireMock.urlEqualTo("/fan-out")));
+    }
+
+    @Test
+    @DisplayName("Requests with different delivery options are not coalesced")
+    void coalesced_requests_keep_their_options() throws Exception {
+
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo("/fan-out"))
+                .willReturn(WireMock.aResponse().withStatus(200).withBody("done").withFixedDelay(300)));
+        String envelope = "{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/fan-out\", " +
+                "\"body\": \"c2FtZQ==\", " +
+                "\"options\": {\"coalesce\": true, \"retry\": {\"maxAttempts\": %d}}}";
+
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(2);
+        List<java.util.concurrent.Future<String>> results = new java.util.ArrayList<>();
+        for (int attempts = 1; attempts <= 2; attempts++) {
+            String request = String.format(envelope, attempts);
+            results.add(executor.submit(() -> {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                HttpResponse response = mock(HttpResponse.class);
+                when(response.getOutputStream()).thenReturn(body);
+                trigger.service(newRequest(request), response);
+                return body.toString();
+            }));
+        }
+        for (java.util.concurrent.Future<String> result : results) {
+            assertEquals("done", result.get(5, java.util.concurrent.TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        WireMock.verify(2, WireMock.postRequestedFor(WireMock.urlEqualTo("/fan-out")));
+    }
+
+    @Test
+    @DisplayName("Metrics endpoint reports stage latencies and outcomes")
+    void metrics_endpoint() throws IOException {
+
+        HttpResponse response = mock(HttpResponse.class);
+        when(response.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        assertDoesNotThrow(() -> trigger.service(newRequest("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\"}"), response));
+        verify(response).setStatusCode(200);
+
+        when(httpRequest.getMethod()).thenReturn("GET");
+        when(httpRequest.getPath()).thenReturn("/metrics");
+        trigger.service(httpRequest, httpResponse);
+
+        verify(httpResponse).setStatusCode(200);
+        String metrics = stringWriter.toString();
+        for (String stage : new String[] {"parse", "validate", "build", "ttfb", "relay", "total"}) {
+            assertTrue(metrics.contains("webhook_stage_seconds_count{stage=\"" + stage + "\"}"), stage);
+        }
+        assertTrue(metrics.contains("webhook_upstream_calls_total{host=\"localhost:" + wireMockServer.port()
+                + "\",outcome=\"success\"}"), metrics);
+        assertTrue(metrics.contains("webhook_dns_cache_lookups_total{result=\"miss\"} "), metrics);
+        assertTrue(metrics.contains("webhook_dns_cache_refreshes_total "), metrics);
+    }
+
+    @Test
+    @DisplayName("Coming Request with invalid priority option")
+    void request_with_invalid_priority() throws IOException {
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"priority\": \"urgent\", \"tenant\": \"acme\"}}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(500);
+        assertEquals("Http request failed: Invalid Priority Value", stringWriter.toString());
+    }
+
+    @Test
+    @DisplayName("Failed call fails over to the fallback urls in order")
+    void fallback_urls_tried_in_order() throws IOException {
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/throw-exception\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"fallbackUrls\": [\"http://unresolvable.invalid/\", \""
+                + wireMockServer.baseUrl() + "\"]}}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(200);
+        assertEquals("<html><body>Successful response</body></html>", outputStream.toString());
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/throw-exception")));
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/")));
+    }
+
+    @Test
+    @DisplayName("Slow idempotent call is hedged to its replica and the first answer wins")
+    void slow_idempotent_call_hedged() throws Exception {
+
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo("/stalled"))
+                .willReturn(WireMock.aResponse().withStatus(200).withBody("stalled").withFixedDelay(3000)));
+        System.setProperty("LATENCY_MIN_SAMPLES", "1");
+        try {
+            HttpResponse warmup = mock(HttpResponse.class);
+            when(warmup.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+            trigger.service(newRequest("{\"url\":\""+wireMockServer.baseUrl()+"\", \"body\": \"e30=\"}"), warmup);
+
+            when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                    "\"url\":\""+wireMockServer.baseUrl()+"/stalled\", " +
+                    "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                    "\"options\": {\"idempotent\": true, \"fallbackUrls\": [\"" + wireMockServer.baseUrl() + "\"]}}")));
+
+            long start = System.nanoTime();
+            assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+            assertTrue(System.nanoTime() - start < java.util.concurrent.TimeUnit.MILLISECONDS.toNanos(2000));
+            verify(httpResponse).setStatusCode(200);
+            assertEquals("<html><body>Successful response</body></html>", outputStream.toString());
+            WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/stalled")));
+        } finally {
+            System.clearProperty("LATENCY_MIN_SAMPLES");
+        }
+    }
+
+    @Test
+    @DisplayName("Coming Request with invalid fallback urls")
+    void request_with_invalid_fallback_urls() throws IOException {
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"fallbackUrls\": [\"ftp://replica\"]}}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(500);
+        assertEquals("Http request failed: Invalid Fallback Urls", stringWriter.toString());
+    }
+
+    @Test
+    @DisplayName("Hundreds of concurrent calls on one instance each get their own response")
+    void concurrent_calls_are_isolated() throws Exception {
+
+        WireMock.stubFor(WireMock.post(WireMock.urlPathMatching("/echo/.*"))
+                .willReturn(WireMock.aResponse().withStatus(200).withBody("{{request.body}}")
+                        .withTransformers("response-template")));
+        int calls = 300;
+        System.setProperty("BULKHEAD_MAX_CONCURRENT", String.valueOf(calls));
+        System.setProperty("MAX_IN_FLIGHT_REQUESTS", String.valueOf(calls));
+        Trigger shared = new Trigger();
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(calls);
+        try {
+            java.util.concurrent.CountDownLatch start = new java.util.concurrent.CountDownLatch(1);
+            List<java.util.concurrent.Future<String>> results = new java.util.ArrayList<>();
+            for (int i = 0; i < calls; i++) {
+                String payload = "call-" + i;
+                String envelope = "{" +
+                        "\"url\":\""+wireMockServer.baseUrl()+"/echo/" + i + "\", " +
+                        "\"body\": \"" + Base64.getEncoder().encodeToString(payload.getBytes()) + "\"}";
+                results.add(executor.submit(() -> {
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    StringWriter error = new StringWriter();
+                    HttpResponse response = mock(HttpResponse.class);
+                    when(response.getOutputStream()).thenReturn(body);
+                    when(response.getWriter()).thenReturn(new BufferedWriter(error));
+                    HttpRequest request = newRequest(envelope);
+                    start.await();
+                    shared.service(request, response);
+                    return body.toString() + error;
+                }));
+            }
+            start.countDown();
+            for (int i = 0; i < calls; i++) {
+                assertEquals("call-" + i, results.get(i).get(30, java.util.concurrent.TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+            System.clearProperty("BULKHEAD_MAX_CONCURRENT");
+            System.clearProperty("MAX_IN_FLIGHT_REQUESTS");
+        }
+        WireMock.verify(calls, WireMock.postRequestedFor(WireMock.urlPathMatching("/echo/.*")));
+    }
+
+    @Test
+    @DisplayName("Bulkhead slot is released when building the request throws")
+    void bulkhead_released_after_runtime_exception() {
+
+        Webhook broken = new Webhook();
+        broken.setUrl(wireMockServer.baseUrl());
+        broken.setMethod(null);
+        Webhook webhook = new Webhook();
+        webhook.setUrl(wireMockServer.baseUrl());
+        webhook.setBody("{}".getBytes());
+
+        System.setProperty("BULKHEAD_MAX_CONCURRENT", "1");
+        try {
+            WebhookSender sender = new WebhookSender();
+            assertNotNull(sender.send(broken).exception);
+            UrlResponse response = sender.send(webhook);
+            assertNull(response.exception);
+            assertEquals(200, response.getStatusCode());
+        } finally {
+            System.clearProperty("BULKHEAD_MAX_CONCURRENT");
+        }
+    }
+
+    @Test
+    @DisplayName("Bulkhead rejections are marked apart from a 429 of the destination")
+    void bulkhead_rejection_marked() throws Exception {
+
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo("/busy"))
+                .willReturn(WireMock.aResponse().withStatus(200).withBody("done").withFixedDelay(500)));
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo("/too-many"))
+                .willReturn(WireMock.aResponse().withStatus(429)));
+        String envelope = "{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/busy\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\"}";
+
+        System.setProperty("BULKHEAD_MAX_CONCURRENT", "1");
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newSingleThreadExecutor();
+        try {
+            java.util.concurrent.Future<?> busy = executor.submit(() -> {
+                HttpResponse response = mock(HttpResponse.class);
+                when(response.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+                trigger.service(newRequest(envelope), response);
+                return null;
+            });
+            awaitRequests(WireMock.postRequestedFor(WireMock.urlEqualTo("/busy")), 1);
+
+            trigger.service(newRequest(envelope), httpResponse);
+            verify(httpResponse).setStatusCode(429);
+            verify(httpResponse).appendHeader("X-Proxy-Rejected", "bulkhead");
+            busy.get(5, java.util.concurrent.TimeUnit.SECONDS);
+
+            HttpResponse upstream429 = mock(HttpResponse.class);
+            when(upstream429.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+            when(upstream429.getWriter()).thenReturn(new BufferedWriter(new StringWriter()));
+            trigger.service(newRequest(envelope.replace("/busy", "/too-many")), upstream429);
+            verify(upstream429).setStatusCode(429);
+            verify(upstream429, never()).appendHeader(eq("X-Proxy-Rejected"), anyString());
+        } finally {
+            executor.shutdownNow();
+            System.clearProperty("BULKHEAD_MAX_CONCURRENT");
+        }
+    }
+
+    @Test
+    @DisplayName("A saturated instance turns requests away with 503")
+    void saturated_instance_rejects_fast() throws Exception {
+
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo("/busy"))
+                .willReturn(WireMock.aResponse().withStatus(200).withBody("done").withFixedDelay(500)));
+        String envelope = "{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/busy\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\"}";
+        System.setProperty("MAX_IN_FLIGHT_REQUESTS", "2");
+        Trigger limited;
+        try {
+            limited = new Trigger();
+        } finally {
+            System.clearProperty("MAX_IN_FLIGHT_REQUESTS");
+        }
+
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(2);
+        try {
+            List<java.util.concurrent.Future<?>> busy = new java.util.ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                busy.add(executor.submit(() -> {
+                    HttpResponse response = mock(HttpResponse.class);
+                    when(response.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+                    limited.service(newRequest(envelope), response);
+                    return null;
+                }));
+            }
+            awaitRequests(WireMock.postRequestedFor(WireMock.urlEqualTo("/busy")), 2);
+
+            long started = System.nanoTime();
+            limited.service(newRequest(envelope), httpResponse);
+            assertTrue(System.nanoTime() - started < java.util.concurrent.TimeUnit.MILLISECONDS.toNanos(200));
+            verify(httpResponse).setStatusCode(503);
+            verify(httpResponse).appendHeader("Retry-After", "1");
+            verify(httpResponse).appendHeader("X-Proxy-Rejected", "overloaded");
+            assertEquals("Http request failed: Too many in-flight requests", stringWriter.toString());
+
+            for (java.util.concurrent.Future<?> call : busy) {
+                call.get(5, java.util.concurrent.TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        WireMock.verify(2, WireMock.postRequestedFor(WireMock.urlEqualTo("/busy")));
+    }
+
+    @Test
+    @DisplayName("Request sent through the java.net.http transport")
+    void jdk_transport_success() throws IOException {
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                "\"headers\":{\"Content-Type\": \"application/json\", \"X-Trace\": \"abc\"}, " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"transport\": \"jdk\"}}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(200);
+        assertEquals("<html><body>Successful response</body></html>", outputStream.toString());
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/"))
+                .withHeader("Content-Type", WireMock.equalTo("application/json"))
+                .withHeader("X-Trace", WireMock.equalTo("abc"))
+                .withRequestBody(WireMock.equalTo("{\n    \"body\" : \"cloudFUNCTION\"\n}")));
+    }
+
+    @Test
+    @DisplayName("Upstream error through the java.net.http transport")
+    void jdk_transport_failure() throws IOException {
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/throw-exception\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"transport\": \"JDK\"}}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(500);
+        assertTrue(stringWriter.toString().startsWith("Http request failed: 500"));
+        assertTrue(stringWriter.toString().endsWith("<html><body>Internal Server Error</body></html>"));
+    }
+
+    @Test
+    @DisplayName("Coming Request with invalid transport")
+    void request_with_invalid_transport() throws IOException {
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"transport\": \"carrier-pigeon\"}}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(500);
+        assertEquals("Http request failed: Invalid Transport Value", stringWriter.toString());
+    }
+
+    @Test
+    @DisplayName("Large body is gzipped when requested")
+    void request_body_gzipped() throws Exception {
+
+        byte[] payload = "{\"event\":\"order.created\"}".repeat(100).getBytes();
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo("/gzip"))
+                .willReturn(WireMock.aResponse().withStatus(200).withBody("ok")));
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/gzip\", " +
+                "\"body\": \"" + Base64.getEncoder().encodeToString(payload) + "\", " +
+                "\"options\": {\"compress\": true}}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(200);
+        List<LoggedRequest> requests = WireMock.findAll(WireMock.postRequestedFor(WireMock.urlEqualTo("/gzip")));
+        assertEquals(1, requests.size());
+        assertEquals("gzip", requests.get(0).getHeader("Content-Encoding"));
+        assertArrayEquals(payload, requests.get(0).getBody());
+    }
+
+    @Test
+    @DisplayName("Gzipped body rejected with 415 is resent uncompressed")
+    void request_body_gzip_fallback() throws IOException {
+
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo("/no-gzip"))
+                .willReturn(WireMock.aResponse().withStatus(200).withBody("ok")));
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo("/no-gzip"))
+                .withHeader("Content-Encoding", WireMock.equalTo("gzip"))
+                .willReturn(WireMock.aResponse().withStatus(415).withHeader("Accept-Encoding", "identity")));
+        String body = Base64.getEncoder().encodeToString("x".repeat(4096).getBytes());
+        String envelope = "{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/no-gzip\", " +
+                "\"body\": \"" + body + "\", " +
+                "\"options\": {\"compress\": true}}";
+
+        for (int i = 0; i < 2; i++) {
+            HttpResponse response = mock(HttpResponse.class);
+            when(response.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+
+            assertDoesNotThrow(() -> trigger.service(newRequest(envelope), response));
+            verify(response).setStatusCode(200);
+        }
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/no-gzip"))
+                .withHeader("Content-Encoding", WireMock.equalTo("gzip")));
+        WireMock.verify(2, WireMock.postRequestedFor(WireMock.urlEqualTo("/no-gzip"))
+                .withHeader("Content-Encoding", WireMock.absent()));
+    }
+
+    @Test
+    @DisplayName("Compressed upstream response is relayed without inflating it")
+    void compressed_response_passed_through() throws IOException {
+
+        byte[] compressed = Compression.gzip("<html><body>Successful response</body></html>".getBytes());
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo("/compressed"))
+                .willReturn(WireMock.aResponse().withStatus(200)
+                        .withHeader("Content-Encoding", "gzip").withBody(compressed)));
+        when(httpRequest.getFirstHeader("Accept-Encoding")).thenReturn(Optional.of("gzip, deflate"));
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"/compressed\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\"}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(200);
+        verify(httpResponse).appendHeader("Content-Encoding", "gzip");
+        assertArrayEquals(compressed, outputStream.toByteArray());
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/compressed"))
+                .withHeader("Accept-Encoding", WireMock.equalTo("gzip, deflate")));
+    }
+
+    @Test
+    @DisplayName("Calls over the rate limit are paced rather than rejected")
+    void rate_limited_calls_are_paced() throws IOException {
+
+        String envelope = "{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"rateLimit\": {\"perSecond\": 20, \"burst\": 1}}}";
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            HttpResponse response = mock(HttpResponse.class);
+            when(response.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+
+            assertDoesNotThrow(() -> trigger.service(newRequest(envelope), response));
+            verify(response).setStatusCode(200);
+        }
+        assertTrue(System.nanoTime() - start >= 180_000_000L);
+        WireMock.verify(5, WireMock.postRequestedFor(WireMock.urlEqualTo("/")));
+    }
+
+    @Test
+    @DisplayName("Calls that would wait too long for the rate limit are rejected")
+    void rate_limit_rejects_beyond_max_wait() throws IOException {
+
+        System.setProperty("RATE_LIMITS", "localhost:" + wireMockServer.port() + "=1");
+        System.setProperty("RATE_LIMIT_MAX_WAIT_MS", "0");
+        try {
+            for (int i = 0; i < 2; i++) {
+                stringWriter = new StringWriter();
+                when(httpResponse.getWriter()).thenReturn(new BufferedWriter(stringWriter));
+                when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                        "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                        "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\"}")));
+                trigger.service(httpRequest, httpResponse);
+            }
+            verify(httpResponse).setStatusCode(200);
+            verify(httpResponse).setStatusCode(429);
+            assertEquals("Http request failed: Rate limit exceeded for localhost:" + wireMockServer.port(),
+                    stringWriter.toString());
+            verify(httpResponse).appendHeader("X-Proxy-Rejected", "rate-limit");
+            WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/")));
+        } finally {
+            System.clearProperty("RATE_LIMITS");
+            System.clearProperty("RATE_LIMIT_MAX_WAIT_MS");
+        }
+    }
+
+    @Test
+    @DisplayName("Limit given with the request does not loosen the configured one")
+    void requested_rate_limit_capped_by_configured() throws IOException {
+
+        System.setProperty("RATE_LIMITS", "localhost:" + wireMockServer.port() + "=1");
+        System.setProperty("RATE_LIMIT_MAX_WAIT_MS", "0");
+        try {
+            for (int i = 0; i < 2; i++) {
+                stringWriter = new StringWriter();
+                when(httpResponse.getWriter()).thenReturn(new BufferedWriter(stringWriter));
+                when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                        "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                        "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                        "\"options\": {\"rateLimit\": {\"perSecond\": 1000, \"burst\": 100}}}")));
+                trigger.service(httpRequest, httpResponse);
+            }
+            verify(httpResponse).setStatusCode(200);
+            verify(httpResponse).setStatusCode(429);
+            WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/")));
+        } finally {
+            System.clearProperty("RATE_LIMITS");
+            System.clearProperty("RATE_LIMIT_MAX_WAIT_MS");
+        }
+    }
+
+    @Test
+    @DisplayName("Limit given with one request does not throttle other callers")
+    void requested_rate_limit_applies_to_its_calls_only() throws IOException {
+
+        String limited = "{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"rateLimit\": {\"perSecond\": 1, \"burst\": 1}}}";
+        String unlimited = "{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\"}";
+
+        System.setProperty("RATE_LIMIT_MAX_WAIT_MS", "0");
+        try {
+            int[] expected = {200, 200, 429};
+            String[] envelopes = {limited, unlimited, limited};
+            for (int i = 0; i < envelopes.length; i++) {
+                HttpResponse response = mock(HttpResponse.class);
+                when(response.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+                when(response.getWriter()).thenReturn(new BufferedWriter(new StringWriter()));
+                trigger.service(newRequest(envelopes[i]), response);
+                verify(response).setStatusCode(expected[i]);
+            }
+        } finally {
+            System.clearProperty("RATE_LIMIT_MAX_WAIT_MS");
+        }
+        WireMock.verify(2, WireMock.postRequestedFor(WireMock.urlEqualTo("/")));
+    }
+
+    @Test
+    @DisplayName("Coming Request with invalid rate limit")
+    void request_with_invalid_rate_limit() throws IOException {
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\", " +
+                "\"options\": {\"rateLimit\": {\"perSecond\": 0}}}")));
+
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(500);
+        assertEquals("Http request failed: Invalid Rate Limit Value", stringWriter.toString());
+    }
+
+    @Test
+    @DisplayName("Hot destinations are connected when the instance starts")
+    void hot_destinations_prewarmed() throws IOException {
+
+        System.setProperty("HOT_DESTINATIONS", wireMockServer.baseUrl() + ", http://unresolvable.invalid");
+        System.setProperty("PREWARM_CONNECTIONS", "3");
+        try {
+            trigger = new Trigger();
+        } finally {
+            System.clearProperty("HOT_DESTINATIONS");
+            System.clearProperty("PREWARM_CONNECTIONS");
+        }
+        assertEquals(3, TransportRegistry.idleConnections(wireMockServer.baseUrl()));
+
+        when(httpRequest.getReader()).thenReturn(new BufferedReader(new StringReader("{" +
+                "\"url\":\""+wireMockServer.baseUrl()+"\", " +
+                "\"body\": \"ewogICAgImJvZHkiIDogImNsb3VkRlVOQ1RJT04iCn0=\"}")));
+        assertDoesNotThrow(() -> trigger.service(httpRequest, httpResponse));
+        verify(httpResponse).setStatusCode(200);
+        assertEquals(3, TransportRegistry.idleConnections(wireMockServer.baseUrl()));
+    }
+
     @Test
     @DisplayName("Coming Request with invalid HTTP Method")
     void request_with_invalid_http_method() {
@@ -380,8 +1615,27 @@ public class TriggerTest {
         assertEquals("Http request failed: Method not allowed", stringWriter.toString());
     }
 
+    private HttpRequest newRequest(String envelope) throws IOException {
+
+        HttpRequest request = mock(HttpRequest.class);
+        when(request.getMethod()).thenReturn("POST");
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(envelope)));
+        return request;
+    }
+
+    private void awaitRequests(RequestPatternBuilder pattern, int count) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (WireMock.findAll(pattern).size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        WireMock.verify(count, pattern);
+    }
+
     private void startServer() {
-        WireMockConfiguration config = WireMockConfiguration.options().dynamicPort();
+        WireMockConfiguration config = WireMockConfiguration.options().dynamicPort()
+                .containerThreads(64)
+                .extensions(new ResponseTemplateTransformer(false));
         this.wireMockServer = new WireMockServer(config);
         wireMockServer.start();
         WireMock.configureFor(wireMockServer.port());